@@ -29,9 +29,13 @@ import android.app.Activity;
 import android.app.ListFragment;
 import android.content.Context;
 import android.os.Bundle;
+import android.view.ContextMenu;
+import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ArrayAdapter;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -60,8 +64,8 @@ public class DownloadManagerFragment extends ListFragment {
     // Callbacks for DownloadService operations
     private final DownloadService.Listener mDownloadListener = new DownloadService.Adapter() {
         @Override
-        public void onAddition(final DownloadService.Download d) {
-            mAdapter.add(d);
+        public void onAddition(final Collection<DownloadService.Download> downloads) {
+            mAdapter.addAll(downloads);
         }
 
         @Override
@@ -70,7 +74,7 @@ public class DownloadManagerFragment extends ListFragment {
         }
 
         @Override
-        public void onProgressUpdate(final DownloadService.Download d) {
+        public void onProgressUpdate(final Collection<DownloadService.Download> downloads) {
             mAdapter.notifyDataSetChanged();
         }
 
@@ -79,6 +83,11 @@ public class DownloadManagerFragment extends ListFragment {
             mAdapter.remove(d);
         }
 
+        @Override
+        public void onFailure(final DownloadService.Download d) {
+            mAdapter.notifyDataSetChanged();
+        }
+
         @Override
         public void onCancellation(final DownloadService.Download d) {
             mAdapter.remove(d);
@@ -98,6 +107,50 @@ public class DownloadManagerFragment extends ListFragment {
 
         mAdapter = new Adapter(getActivity());
         setListAdapter(mAdapter);
+
+        registerForContextMenu(getListView());
+    }
+
+    @Override
+    public void onCreateContextMenu(final ContextMenu menu, final View v, final ContextMenuInfo menuInfo) {
+        super.onCreateContextMenu(menu, v, menuInfo);
+
+        final AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
+        final DownloadService.Download d = mAdapter.getItem(info.position);
+
+        menu.setHeaderTitle(d.getName());
+        getActivity().getMenuInflater().inflate(R.menu.contextmenu_download, menu);
+
+        // A download that's already running can't be moved; only a failed one can be retried
+        menu.findItem(R.id.move_to_front).setVisible(!d.isStarted());
+        menu.findItem(R.id.retry).setVisible(d.isFailed());
+    }
+
+    @Override
+    public boolean onContextItemSelected(final MenuItem item) {
+        final AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
+        final DownloadService.Download d = mAdapter.getItem(info.position);
+
+        switch (item.getItemId()) {
+            case R.id.move_to_front:
+                if (mDownloadService.moveToFront(d)) {
+                    mAdapter.remove(d);
+                    mAdapter.insert(d, 0);
+                }
+                return true;
+
+            case R.id.retry:
+                mDownloadService.retry(d);
+                mAdapter.notifyDataSetChanged();
+                return true;
+
+            case R.id.cancel:
+                mDownloadService.cancel(d);
+                return true;
+
+            default:
+                return super.onContextItemSelected(item);
+        }
     }
 
     @Override
@@ -188,7 +241,9 @@ public class DownloadManagerFragment extends ListFragment {
                 holder.path.setText(d.getSavePath());
 
             if (holder.progressView != null)
-                holder.progressView.setText(d.getProgressString());
+                holder.progressView.setText(d.isFailed() ?
+                        getString(R.string.download_failed, d.getProgressString()) :
+                        d.getProgressString());
 
             if (holder.spinner != null)
                 holder.spinner.setVisibility(d.isStarted() && !d.isCompleted() && !d.isCancelled() ?
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import java.util.AbstractCollection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The queue of downloads that haven't finished yet: a linked list for the order, plus a hash index keyed by what each
+ * download is of (see Download.getKey()), so that finding, removing and moving a download are all constant-time however
+ * long the queue gets. Iteration is in queue order.
+ */
+final class DownloadQueue extends AbstractCollection<DownloadService.Download> {
+    private static class Node {
+        private final DownloadService.Download download;
+        private Node previous, next;
+
+        private Node(final DownloadService.Download d) {
+            download = d;
+        }
+    }
+
+    private final Map<Long, Node> mIndex = new HashMap<Long, Node>();
+    private Node mHead, mTail;
+    private int mModCount = 0;
+
+    @Override
+    public int size() {
+        return mIndex.size();
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return o instanceof DownloadService.Download &&
+                mIndex.containsKey(((DownloadService.Download) o).getKey());
+    }
+
+    // Adds a download to the end of the queue, unless it's already queued
+    @Override
+    public boolean add(final DownloadService.Download d) {
+        if (mIndex.containsKey(d.getKey())) return false;
+
+        final Node node = new Node(d);
+        mIndex.put(d.getKey(), node);
+        linkLast(node);
+
+        return true;
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        if (!(o instanceof DownloadService.Download)) return false;
+
+        final Node node = mIndex.remove(((DownloadService.Download) o).getKey());
+        if (node == null) return false;
+
+        unlink(node);
+        return true;
+    }
+
+    // Gets the queued download that's of the same thing as the given one, or null if there isn't one
+    DownloadService.Download get(final DownloadService.Download d) {
+        final Node node = mIndex.get(d.getKey());
+        return node == null ? null : node.download;
+    }
+
+    // Moves a queued download to the front of the queue; returns false if it isn't queued
+    boolean moveToFront(final DownloadService.Download d) {
+        final Node node = mIndex.get(d.getKey());
+        if (node == null) return false;
+
+        if (node != mHead) {
+            unlink(node);
+            linkFirst(node);
+        }
+
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        mIndex.clear();
+        mHead = mTail = null;
+        mModCount++;
+    }
+
+    private void linkFirst(final Node node) {
+        node.previous = null;
+        node.next = mHead;
+
+        if (mHead != null)
+            mHead.previous = node;
+        else
+            mTail = node;
+
+        mHead = node;
+        mModCount++;
+    }
+
+    private void linkLast(final Node node) {
+        node.next = null;
+        node.previous = mTail;
+
+        if (mTail != null)
+            mTail.next = node;
+        else
+            mHead = node;
+
+        mTail = node;
+        mModCount++;
+    }
+
+    private void unlink(final Node node) {
+        if (node.previous != null)
+            node.previous.next = node.next;
+        else
+            mHead = node.next;
+
+        if (node.next != null)
+            node.next.previous = node.previous;
+        else
+            mTail = node.previous;
+
+        node.previous = node.next = null;
+        mModCount++;
+    }
+
+    @Override
+    public Iterator<DownloadService.Download> iterator() {
+        return new Iterator<DownloadService.Download>() {
+            private Node mNext = mHead, mLastReturned = null;
+            private int mExpectedModCount = mModCount;
+
+            @Override
+            public boolean hasNext() {
+                return mNext != null;
+            }
+
+            @Override
+            public DownloadService.Download next() {
+                if (mModCount != mExpectedModCount) throw new ConcurrentModificationException();
+                if (mNext == null) throw new NoSuchElementException();
+
+                mLastReturned = mNext;
+                mNext = mNext.next;
+                return mLastReturned.download;
+            }
+
+            @Override
+            public void remove() {
+                if (mLastReturned == null) throw new IllegalStateException();
+                if (mModCount != mExpectedModCount) throw new ConcurrentModificationException();
+
+                DownloadQueue.this.remove(mLastReturned.download);
+                mLastReturned = null;
+                mExpectedModCount = mModCount;
+            }
+        };
+    }
+}
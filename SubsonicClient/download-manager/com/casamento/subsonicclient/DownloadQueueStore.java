@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps DownloadService's queue in a database (alongside the filesystem entry database), so that it survives the
+ * process being killed. Changes are collected in memory and written together in one transaction a little later, on a
+ * background thread, so that neither the main thread nor the download loops ever wait on the disk.
+ */
+final class DownloadQueueStore {
+    private static final String logTag = "DownloadQueueStore";
+
+    private static final String DATABASE_NAME = "downloads.db";
+    private static final int DATABASE_VERSION = 5;
+
+    private static final String TABLE = "downloads";
+    private static final String
+            ID = "_id",
+            MEDIA_ID = "media_id",
+            PARENT_ID = "parent_id",
+            TRANSCODED = "transcoded",
+            SERVER = "server",
+            FORMAT = "format",
+            URL = "url",
+            NAME = "name",
+            SAVE_PATH = "save_path",
+            SIZE = "size",
+            STATE = "state",
+            PRIORITY = "priority",
+            BYTES_DONE = "bytes_done";
+
+    static final int STATE_QUEUED = 0, STATE_ACTIVE = 1, STATE_FAILED = 2;
+
+    // How long changes are held before they're written, so that bursts of them share a transaction
+    private static final long WRITE_DELAY = 1000;
+
+    private final SQLiteOpenHelper mHelper;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, logTag);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Changes that haven't been written yet, keyed by URL; guarded by this
+    private final Map<String, ContentValues> mInserts = new LinkedHashMap<String, ContentValues>(),
+            mUpdates = new HashMap<String, ContentValues>();
+    private final Set<String> mDeletes = new HashSet<String>();
+    private boolean mWriteScheduled = false;
+
+    DownloadQueueStore(final Context context) {
+        mHelper = new SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+            @Override
+            public void onCreate(final SQLiteDatabase db) {
+                db.execSQL("create table " + TABLE + "(" +
+                        ID + " integer primary key autoincrement," +
+                        MEDIA_ID + " integer not null," +
+                        PARENT_ID + " integer not null," +
+                        TRANSCODED + " integer not null," +
+                        SERVER + " text not null," +
+                        FORMAT + " text," +
+                        URL + " text unique not null," +
+                        NAME + " text," +
+                        SAVE_PATH + " text not null," +
+                        SIZE + " integer," +
+                        STATE + " integer not null," +
+                        PRIORITY + " integer not null," +
+                        BYTES_DONE + " integer not null)");
+            }
+
+            // Carries the queue across: the columns the old and new tables have in common are copied over, and any new
+            // ones take their defaults (so a column added later has to have one if it's not null)
+            @Override
+            public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+                final String oldTable = TABLE + "_old";
+                db.execSQL("alter table " + TABLE + " rename to " + oldTable);
+                onCreate(db);
+
+                final List<String> columns = getColumns(db, TABLE);
+                columns.retainAll(getColumns(db, oldTable));
+
+                final StringBuilder columnList = new StringBuilder();
+                for (final String column : columns) {
+                    if (columnList.length() > 0) columnList.append(',');
+                    columnList.append(column);
+                }
+
+                db.execSQL("insert into " + TABLE + "(" + columnList + ") select " + columnList + " from " + oldTable);
+                db.execSQL("drop table " + oldTable);
+
+                Log.i(logTag, "Upgraded the download queue from version " + oldVersion + " to " + newVersion);
+            }
+        };
+    }
+
+    private static List<String> getColumns(final SQLiteDatabase db, final String table) {
+        final List<String> columns = new ArrayList<String>();
+
+        final Cursor c = db.rawQuery("pragma table_info(" + table + ")", null);
+        try {
+            final int nameIndex = c.getColumnIndexOrThrow("name");
+            while (c.moveToNext())
+                columns.add(c.getString(nameIndex));
+        } finally {
+            c.close();
+        }
+
+        return columns;
+    }
+
+    interface LoadListener {
+        /**
+         * Called on the main thread once the stored queue has been read.
+         * @param downloads The downloads that hadn't finished, in queue order, with their progress so far
+         */
+        void onLoaded(List<DownloadService.Download> downloads);
+    }
+
+    /**
+     * Reads the stored queue on the background thread, ahead of any changes made since; it should only be done once,
+     * when the service starts. Credentials aren't stored, so the downloads have none until they're given their server's
+     * access information again.
+     */
+    void load(final LoadListener listener) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<DownloadService.Download> downloads;
+                try {
+                    downloads = read();
+                } catch (final RuntimeException e) {
+                    Log.e(logTag, "Couldn't read the download queue", e);
+                    downloads = Collections.emptyList();
+                }
+
+                final List<DownloadService.Download> loaded = downloads;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onLoaded(loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    private List<DownloadService.Download> read() {
+        final List<DownloadService.Download> downloads = new ArrayList<DownloadService.Download>();
+
+        final Cursor c = mHelper.getReadableDatabase().query(TABLE,
+                new String[] { MEDIA_ID, PARENT_ID, TRANSCODED, SERVER, FORMAT, NAME, URL, SAVE_PATH, SIZE, PRIORITY,
+                        BYTES_DONE, STATE },
+                null, null, null, null, ID);
+        try {
+            while (c.moveToNext()) {
+                final DownloadService.Download d = new DownloadService.Download(c.getInt(0), c.getInt(1),
+                        c.getInt(2) != 0, c.getString(3), c.getString(4), c.getString(5), c.getString(6),
+                        c.getString(7), null, null, c.getLong(8), c.getInt(9));
+                d.setProgress(c.getLong(10));
+                d.setFailed(c.getInt(11) == STATE_FAILED);
+                downloads.add(d);
+            }
+        } finally {
+            c.close();
+        }
+
+        return downloads;
+    }
+
+    synchronized void add(final DownloadService.Download d) {
+        final ContentValues cv = new ContentValues();
+        cv.put(MEDIA_ID, d.getMediaId());
+        cv.put(PARENT_ID, d.getParentId());
+        cv.put(TRANSCODED, d.isTranscoded());
+        cv.put(SERVER, d.getServer());
+        cv.put(FORMAT, d.getFormat());
+        cv.put(URL, d.getUrl());
+        cv.put(NAME, d.getName());
+        cv.put(SAVE_PATH, d.getSavePath());
+        cv.put(SIZE, d.getSize());
+        cv.put(STATE, STATE_QUEUED);
+        cv.put(PRIORITY, d.getPriority());
+        cv.put(BYTES_DONE, d.getProgress());
+
+        mDeletes.remove(d.getUrl());
+        mInserts.put(d.getUrl(), cv);
+        scheduleWrite();
+    }
+
+    synchronized void update(final DownloadService.Download d, final int state) {
+        ContentValues cv = mUpdates.get(d.getUrl());
+        if (cv == null) {
+            cv = new ContentValues();
+            mUpdates.put(d.getUrl(), cv);
+        }
+
+        cv.put(STATE, state);
+        cv.put(PRIORITY, d.getPriority());
+        cv.put(BYTES_DONE, d.getProgress());
+        scheduleWrite();
+    }
+
+    synchronized void remove(final DownloadService.Download d) {
+        mInserts.remove(d.getUrl());
+        mUpdates.remove(d.getUrl());
+        mDeletes.add(d.getUrl());
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (mWriteScheduled) return;
+
+        mWriteScheduled = true;
+        mWriter.schedule(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, WRITE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    // Writes every pending change in one transaction
+    private void write() {
+        final Set<String> deletes;
+        final Collection<ContentValues> inserts;
+        final Map<String, ContentValues> updates;
+
+        synchronized (this) {
+            deletes = new HashSet<String>(mDeletes);
+            inserts = new ArrayList<ContentValues>(mInserts.values());
+            updates = new HashMap<String, ContentValues>(mUpdates);
+
+            mDeletes.clear();
+            mInserts.clear();
+            mUpdates.clear();
+            mWriteScheduled = false;
+        }
+
+        if (deletes.isEmpty() && inserts.isEmpty() && updates.isEmpty()) return;
+
+        try {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (final String url : deletes)
+                    db.delete(TABLE, URL + "=?", new String[] { url });
+
+                for (final ContentValues cv : inserts)
+                    db.insertWithOnConflict(TABLE, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+
+                for (final Map.Entry<String, ContentValues> update : updates.entrySet())
+                    db.update(TABLE, update.getValue(), URL + "=?", new String[] { update.getKey() });
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (final RuntimeException e) {
+            Log.e(logTag, "Couldn't save the download queue", e);
+        }
+    }
+
+    // Writes any pending changes and closes the database on the background thread, without waiting for it; a write
+    // that was already scheduled still runs afterwards, but finds nothing left to write
+    void close() {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write();
+                mHelper.close();
+            }
+        });
+        mWriter.shutdown();
+    }
+}
@@ -28,42 +28,165 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.widget.RemoteViews;
+import org.apache.http.auth.AuthenticationException;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
-
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// All of the bookkeeping here is done on the main thread, so none of it needs to be synchronized
 public class DownloadService extends Service {
-    private static final Collection<Listener> mListeners = new ArrayList<Listener>();
-    private static final LinkedList<Download> mPendingDownloads = new LinkedList<Download>();
+    private static final String logTag = "DownloadService";
+
+    static final String PREF_MAX_CONCURRENT_DOWNLOADS = "maxConcurrentDownloads", PREF_DOWNLOAD_ORDER = "downloadOrder",
+            PREF_MAX_DOWNLOAD_RATE = "maxDownloadRate";
+    private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3, MAX_CONCURRENT_DOWNLOADS_LIMIT = 8;
+
+    // The download rate preference is in KB/s; anything lower than this (other than 0, for no limit) is raised to it
+    private static final long MIN_DOWNLOAD_RATE = 16;
+
+    // Leave some of the pool's connections to each server free, so that browsing still works while downloading
+    private static final int MAX_CONNECTIONS_PER_HOST = HttpClientPool.MAX_CONNECTIONS_PER_ROUTE - 2;
+
+    // Files at least this big are fetched in this many segments at once, if the server supports ranges, so that a
+    // single download isn't limited to the throughput of one connection
+    private static final long SEGMENTED_DOWNLOAD_THRESHOLD = 16 * 1024 * 1024;
+    private static final int SEGMENT_COUNT = Math.min(4, MAX_CONNECTIONS_PER_HOST);
+
+    // SystemUI chokes if a notification is updated too frequently
+    private static final long NOTIFICATION_UPDATE_INTERVAL = 1000;
+
+    // Progress updates are held for up to a frame, so that however many downloads are running, listeners hear about
+    // them together at most once a frame
+    private static final long PROGRESS_BATCH_INTERVAL = 16;
+
+    // Copied on write, so that listeners can (un)register while an event is being delivered without upsetting it
+    private static final Collection<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    // Every download that hasn't finished yet, in the order they'll be started; includes the active ones
+    private static final DownloadQueue mPendingDownloads = new DownloadQueue();
+
+    private static final List<DownloadTask> mActiveTasks = new ArrayList<DownloadTask>();
+
+    // Shared by every stream of every download
+    private static final RateLimiter mRateLimiter = new RateLimiter();
+
+    private DownloadQueueStore mStore;
+    private LocalFileIndex mLocalFiles;
+
+    // Folder trees that are being listed so that their files can be queued; they belong to the service, rather than to
+    // whoever asked for them, so that they carry on if that goes away
+    private final List<FolderEnumerator> mEnumerators = new ArrayList<FolderEnumerator>();
+
+    // The access information of every data source downloads have been queued from, keyed by table; restored downloads
+    // take their credentials from here, since they aren't stored with the queue
+    private final Map<String, DataSource.AccessInformation> mAccessInfo =
+            new HashMap<String, DataSource.AccessInformation>();
 
-    private static DownloadTask mCurrentTask;
     private Notification mNotification;
+    private long mLastNotificationUpdate = 0;
+    private boolean mDestroyed = false;
+
+    // Downloads that have made progress since listeners were last told
+    private final Handler mHandler = new Handler();
+    private final Collection<Download> mProgressed = new LinkedHashSet<Download>();
+
+    private final Runnable mDeliverProgress = new Runnable() {
+        @Override
+        public void run() {
+            final Collection<Download> progressed =
+                    Collections.unmodifiableList(new ArrayList<Download>(mProgressed));
+            mProgressed.clear();
+
+            for (final Listener l : mListeners)
+                l.onProgressUpdate(progressed);
+
+            for (final Download d : progressed)
+                mStore.update(d, DownloadQueueStore.STATE_ACTIVE);
+
+            requestNotificationUpdate();
+        }
+    };
+
+    // Brings the notification up to date (or takes it down, if nothing's downloading); requests are coalesced, and
+    // carried out at most once every NOTIFICATION_UPDATE_INTERVAL
+    private boolean mNotificationUpdatePending = false;
+
+    private final Runnable mUpdateNotification = new Runnable() {
+        @Override
+        public void run() {
+            mNotificationUpdatePending = false;
+
+            if (mActiveTasks.isEmpty())
+                cancelNotification();
+            else
+                updateNotification();
+        }
+    };
+
+    private void requestNotificationUpdate() {
+        if (mNotificationUpdatePending) return;
+
+        mNotificationUpdatePending = true;
+        final long sinceLastUpdate = System.currentTimeMillis() - mLastNotificationUpdate;
+        mHandler.postDelayed(mUpdateNotification, Math.max(0, NOTIFICATION_UPDATE_INTERVAL - sinceLastUpdate));
+    }
 
     interface Listener {
-        void onAddition(Download download);
+        // Every download that was queued together
+        void onAddition(Collection<Download> downloads);
         void onStart(Download download);
-        void onProgressUpdate(Download download);
+        // Every download that has made progress since the last call
+        void onProgressUpdate(Collection<Download> downloads);
         void onCompletion(Download download);
+        // The download gave up; it stays queued, with its partial file, until it's retried or cancelled
+        void onFailure(Download download);
         void onCancellation(Download download);
+
+        /**
+         * Called as files are found in a folder tree that's being queued (see queueFolder()).
+         * @param fileCount The number of files found so far in the tree
+         * @param byteCount Their total size, as far as it's known
+         */
+        void onFolderProgress(int fileCount, long byteCount);
+
+        // Every folder tree that was being queued has been listed
+        void onFoldersQueued();
     }
 
     static class Adapter implements Listener {
-        @Override public void onAddition(final Download download)       { /* do nothing */ }
+        @Override public void onAddition(final Collection<Download> downloads) { /* do nothing */ }
         @Override public void onStart(final Download download)          { /* do nothing */ }
-        @Override public void onProgressUpdate(final Download download) { /* do nothing */ }
+        @Override public void onProgressUpdate(final Collection<Download> downloads) { /* do nothing */ }
         @Override public void onCompletion(final Download download)     { /* do nothing */ }
+        @Override public void onFailure(final Download download)        { /* do nothing */ }
         @Override public void onCancellation(final Download download)   { /* do nothing */ }
+        @Override public void onFolderProgress(final int fileCount, final long byteCount) { /* do nothing */ }
+        @Override public void onFoldersQueued()                         { /* do nothing */ }
     }
 
     class ServiceBinder extends Binder {
@@ -90,85 +213,357 @@ public class DownloadService extends Service {
         mListeners.remove(listener);
     }
 
-    void queue(final String name, final String url, final String savePath, final String username,
-            final String password) {
-        final Download d = new Download(name, url, savePath, username, password);
+    // Where a media file is saved: under the same path as on the server, with the suffix of the format it's saved in
+    // TODO: this could stand to be a little less hideous
+    static String getSavePath(final MediaFile mf, final boolean transcoded) {
+        return Environment.getExternalStorageDirectory().toString() + "/SubsonicClient/" +
+                mf.path.substring(0, mf.path.lastIndexOf('.') + 1) +
+                (transcoded && mf.transcodedSuffix != null ? mf.transcodedSuffix : mf.suffix);
+    }
+
+    private static String getFormat(final MediaFile mf, final boolean transcoded) {
+        return transcoded && mf.transcodedSuffix != null ? mf.transcodedSuffix : mf.suffix;
+    }
+
+    // A transcoded file's size isn't known until it's been transcoded
+    private static long getExpectedSize(final MediaFile mf, final boolean transcoded) {
+        return transcoded || mf.size == null || mf.size <= 0 ? -1 : mf.size;
+    }
+
+    /**
+     * Queues a media file for downloading; see queue(DataSource, List, boolean, int).
+     */
+    void queue(final DataSource source, final MediaFile mf, final boolean transcoded, final int priority) {
+        queue(source, Collections.singletonList(mf), transcoded, priority);
+    }
+
+    /**
+     * Queues media files for downloading, all at once: listeners hear about them together, and the queue is only
+     * rescheduled once. If the same file (transcoded or not) is already queued, it's raised to the given priority
+     * instead, if that's higher. A file that turns out to have been downloaded already completes as soon as it starts;
+     * that's checked on the download's own thread, since it means looking at the file.
+     * @param source The data source the files are from
+     * @param files The files to download
+     * @param transcoded Whether to download the files transcoded rather than the originals
+     * @param priority One of the Download.PRIORITY_ constants
+     */
+    void queue(final DataSource source, final List<MediaFile> files, final boolean transcoded, final int priority) {
+        final DataSource.AccessInformation accessInfo = source.getAccessInformation();
+        mAccessInfo.put(source.getTableName(), accessInfo);
+
+        final List<Download> added = new ArrayList<Download>();
+        boolean changed = false;
+
+        for (final MediaFile mf : files) {
+            final int parentId = mf.parentId == null ? -1 : mf.parentId;
+            final Download d = new Download(mf.id, parentId, transcoded, source.getTableName(),
+                    getFormat(mf, transcoded), mf.name, accessInfo.getDownloadUrl(mf, transcoded),
+                    getSavePath(mf, transcoded), accessInfo.getUsername(), accessInfo.getPassword(),
+                    getExpectedSize(mf, transcoded), priority);
+
+            if (mPendingDownloads.add(d)) {
+                added.add(d);
+                mStore.add(d);
+                continue;
+            }
+
+            final Download queued = mPendingDownloads.get(d);
 
-        if (!mPendingDownloads.contains(d)) {
+            // Queueing a file that failed again tries it again
+            if (queued.isFailed()) {
+                queued.setFailed(false);
+                mStore.update(queued, DownloadQueueStore.STATE_QUEUED);
+                changed = true;
+            }
+
+            if (queued.getPriority() < priority && getTask(queued) == null) {
+                queued.setPriority(priority);
+                mStore.update(queued, DownloadQueueStore.STATE_QUEUED);
+                changed = true;
+            }
+        }
+
+        if (!added.isEmpty()) {
+            final Collection<Download> addition = Collections.unmodifiableList(added);
             for (final Listener l : mListeners)
-                l.onAddition(d);
+                l.onAddition(addition);
+        }
 
-            mPendingDownloads.addLast(d);
+        if (changed || !added.isEmpty())
+            scheduleDownloads();
+    }
 
-            if (!isDownloading())
-                startDownload(d);
+    /**
+     * Queues every media file in a folder tree for downloading. The tree is listed in the background, and its files
+     * are queued a folder at a time as they're found, so the first ones can start long before it's all been listed.
+     * Files that have already been downloaded in full are passed over by the workers that list the tree, so they
+     * never reach the queue. Listeners hear how it's going through onFolderProgress() and onFoldersQueued().
+     * @param source The data source the folder is from
+     * @param folder The top of the tree
+     * @param transcoded Whether to download the files transcoded rather than the originals
+     * @param priority One of the Download.PRIORITY_ constants
+     */
+    void queueFolder(final DataSource source, final Folder folder, final boolean transcoded, final int priority) {
+        final FolderEnumerator[] enumerator = new FolderEnumerator[1];
+        final String server = source.getTableName();
+        final FolderEnumerator.Filter notDownloaded = new FolderEnumerator.Filter() {
+            @Override
+            public boolean accept(final MediaFile mf) {
+                return !mLocalFiles.isAvailable(server, mf.id, getFormat(mf, transcoded), getSavePath(mf, transcoded),
+                        getExpectedSize(mf, transcoded));
+            }
+        };
+
+        enumerator[0] = new FolderEnumerator(source, notDownloaded, new FolderEnumerator.Listener() {
+            @Override
+            public void onFilesFound(final List<MediaFile> files, final int fileCount, final long byteCount) {
+                queue(source, files, transcoded, priority);
+
+                for (final Listener l : mListeners)
+                    l.onFolderProgress(fileCount, byteCount);
+            }
+
+            @Override
+            public void onFinished(final int fileCount, final long byteCount, final int errorCount) {
+                Log.i(logTag, "Found " + fileCount + " files (" + byteCount + " bytes) in " + folder.name +
+                        (errorCount > 0 ? "; " + errorCount + " folders couldn't be listed" : ""));
+
+                mEnumerators.remove(enumerator[0]);
+                if (!mEnumerators.isEmpty()) return;
+
+                for (final Listener l : mListeners)
+                    l.onFoldersQueued();
+            }
+        });
+
+        mEnumerators.add(enumerator[0]);
+        enumerator[0].start(folder);
+    }
+
+    /**
+     * Makes a data source's access information available to the downloads from it that were restored without
+     * credentials, so that they can start.
+     * @param source The data source
+     */
+    void addDataSource(final DataSource source) {
+        mAccessInfo.put(source.getTableName(), source.getAccessInformation());
+
+        if (attachCredentials(mPendingDownloads))
+            scheduleDownloads();
+    }
+
+    // Gives downloads that have no credentials those of their server, if it's known; returns whether any were given
+    private boolean attachCredentials(final Iterable<Download> downloads) {
+        boolean attached = false;
+
+        for (final Download d : downloads) {
+            if (d.hasCredentials()) continue;
+
+            final DataSource.AccessInformation accessInfo = mAccessInfo.get(d.getServer());
+            if (accessInfo != null) {
+                d.setCredentials(accessInfo.getUsername(), accessInfo.getPassword());
+                attached = true;
+            }
         }
+
+        return attached;
+    }
+
+    /**
+     * Moves a download that hasn't started yet to the front of the queue, so that it's the next one to start; the
+     * downloads that are already running carry on.
+     * @param d The download to move
+     * @return Whether it was moved (i.e. it was queued, and hadn't started)
+     */
+    boolean moveToFront(final Download d) {
+        if (getTask(d) != null || !mPendingDownloads.moveToFront(d)) return false;
+
+        final Download queued = mPendingDownloads.get(d);
+        queued.setFailed(false);
+        queued.setPriority(Download.PRIORITY_TOP);
+        mStore.update(queued, DownloadQueueStore.STATE_QUEUED);
+
+        scheduleDownloads();
+        return true;
+    }
+
+    /**
+     * Tries a failed download again; it carries on from its partial file.
+     * @param d The download to retry
+     * @return Whether it was retried (i.e. it was queued, and had failed)
+     */
+    boolean retry(final Download d) {
+        final Download queued = mPendingDownloads.get(d);
+        if (queued == null || !queued.isFailed()) return false;
+
+        queued.setFailed(false);
+        mStore.update(queued, DownloadQueueStore.STATE_QUEUED);
+
+        scheduleDownloads();
+        return true;
     }
 
-    // TODO: fix this
     void cancel(final Download d) {
+        if (!mPendingDownloads.remove(d)) return;
+
         d.setCancelled();
+        mStore.remove(d);
+
+        final DownloadTask task = getTask(d);
+        if (task != null) {
+            mActiveTasks.remove(task);
+            task.cancel(true);
+        } else {
+            // A download that isn't running (e.g. one that failed, or was restored) may still have a partial file
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    new PartialDownload(d.getUrl(), d.getSavePath()).discard();
+                }
+            });
+        }
 
         for (final Listener l : mListeners)
             l.onCancellation(d);
 
-        if (mCurrentTask.getDownload().equals(d)) {
-            mCurrentTask.cancel(true);
-            startNextOrSleep();
-        } else
-            mPendingDownloads.remove(d);
+        scheduleDownloads();
     }
 
     boolean isDownloading() {
-        return mCurrentTask != null;
+        return !mActiveTasks.isEmpty();
     }
 
-    Collection<Download> getPendingDownloads() {
-        return mPendingDownloads;
+    // A snapshot of the downloads that haven't finished yet, in queue order; it doesn't change as the queue does
+    List<Download> getPendingDownloads() {
+        return Collections.unmodifiableList(new ArrayList<Download>(mPendingDownloads));
     }
 
-    private void startNextOrSleep() {
-        mPendingDownloads.removeFirst();
+    private int getMaxConcurrentDownloads() {
+        final String value = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(PREF_MAX_CONCURRENT_DOWNLOADS, null);
 
-        if (mPendingDownloads.isEmpty()) {
-            mCurrentTask = null;
-            cancelNotification();
-        } else
-            startDownload(mPendingDownloads.getFirst());
+        try {
+            return value == null ?
+                    DEFAULT_MAX_CONCURRENT_DOWNLOADS :
+                    Math.max(1, Math.min(MAX_CONCURRENT_DOWNLOADS_LIMIT, Integer.parseInt(value)));
+        } catch (final NumberFormatException e) {
+            return DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+        }
     }
 
-    private final Listener mDownloadTaskListener = new Adapter() {
-	    private static final int UPDATE_RATE = 1000;
-        private long lastUpdateTime = 0;
+    // In bytes per second; 0 for no limit
+    private long getMaxDownloadRate() {
+        final String value = PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(PREF_MAX_DOWNLOAD_RATE, null);
 
-        @Override
-        public void onStart(final Download d) {
-            updateNotification(d.getName(), d.getSavePath());
+        try {
+            final long rate = value == null ? 0 : Long.parseLong(value);
+            return rate <= 0 ? 0 : Math.max(MIN_DOWNLOAD_RATE, rate) * 1024;
+        } catch (final NumberFormatException e) {
+            return 0;
         }
+    }
 
-        @Override
-        public void onProgressUpdate(final Download d) {
-            // SystemUI chokes if a notification is updated too frequently
-            final long currentTime = System.currentTimeMillis();
-            if (currentTime - lastUpdateTime > UPDATE_RATE) {
-                updateNotification(d.getProgressString());
-                lastUpdateTime = currentTime;
-            }
+    private SchedulingPolicy getSchedulingPolicy() {
+        return SchedulingPolicy.fromName(PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(PREF_DOWNLOAD_ORDER, null));
+    }
+
+    private static DownloadTask getTask(final Download d) {
+        for (final DownloadTask task : mActiveTasks) {
+            if (task.getDownload().equals(d))
+                return task;
         }
 
-        @Override
-        public void onCompletion(final Download d) {
-            startNextOrSleep();
+        return null;
+    }
+
+    // The downloads that are waiting to start, in the order they should start: highest priority first, and within a
+    // priority, in the order given by the scheduling policy. Downloads that were moved to the front stay in the order
+    // they were moved in, most recent first. Restored downloads wait until they have credentials, and failed ones until
+    // they're retried.
+    private List<Download> getStartOrder(final SchedulingPolicy policy) {
+        final List<Download> ordered = new ArrayList<Download>();
+
+        for (int priority = Download.PRIORITY_TOP; priority >= Download.PRIORITY_NORMAL; priority--) {
+            final List<Download> waiting = new ArrayList<Download>();
+            for (final Download d : mPendingDownloads) {
+                if (d.getPriority() == priority && getTask(d) == null && d.hasCredentials() && !d.isFailed())
+                    waiting.add(d);
+            }
+
+            ordered.addAll(priority == Download.PRIORITY_TOP ? waiting : policy.order(waiting));
         }
 
-        @Override
-        public void onCancellation(final Download d) {
-            startNextOrSleep();
+        return ordered;
+    }
+
+    // Starts as many pending downloads as the limits allow, in the order given by getStartOrder(); a download that
+    // would put its server over the connection limit is passed over for one that wouldn't (but one can always start if
+    // the server is idle)
+    private void scheduleDownloads() {
+        final int maxConcurrentDownloads = getMaxConcurrentDownloads();
+        mRateLimiter.setMaxRate(getMaxDownloadRate());
+
+        // Working out the order isn't free, so don't bother while every slot is taken (e.g. while a folder is queued)
+        if (mActiveTasks.size() < maxConcurrentDownloads) {
+            final Map<String, Integer> connectionsByHost = new HashMap<String, Integer>();
+            for (final DownloadTask task : mActiveTasks) {
+                final Download d = task.getDownload();
+                final Integer count = connectionsByHost.get(d.getHost());
+                connectionsByHost.put(d.getHost(), (count == null ? 0 : count) + d.getConnectionCount());
+            }
+
+            for (final Download d : getStartOrder(getSchedulingPolicy())) {
+                if (mActiveTasks.size() >= maxConcurrentDownloads) break;
+
+                final Integer count = connectionsByHost.get(d.getHost());
+                if (count != null && count + d.getConnectionCount() > MAX_CONNECTIONS_PER_HOST) continue;
+
+                connectionsByHost.put(d.getHost(), (count == null ? 0 : count) + d.getConnectionCount());
+                startDownload(d);
+            }
         }
-    };
+
+        requestNotificationUpdate();
+    }
 
     private void startDownload(final Download d) {
-        mCurrentTask = (DownloadTask) new DownloadTask(d).execute();
+        final DownloadTask task = new DownloadTask(d);
+        mActiveTasks.add(task);
+        mStore.update(d, DownloadQueueStore.STATE_ACTIVE);
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void onDownloadFinished(final DownloadTask task) {
+        mActiveTasks.remove(task);
+        mPendingDownloads.remove(task.getDownload());
+        mProgressed.remove(task.getDownload());
+        mStore.remove(task.getDownload());
+
+        scheduleDownloads();
+    }
+
+    // The download stays queued, so that it can be retried; its partial file is kept, so that a retry resumes it
+    private void onDownloadFailed(final DownloadTask task) {
+        final Download d = task.getDownload();
+
+        mActiveTasks.remove(task);
+        mProgressed.remove(d);
+        d.setFailed(true);
+        mStore.update(d, DownloadQueueStore.STATE_FAILED);
+
+        for (final Listener l : mListeners)
+            l.onFailure(d);
+
+        scheduleDownloads();
+    }
+
+    private void onDownloadProgress(final Download d) {
+        if (mProgressed.isEmpty())
+            mHandler.postDelayed(mDeliverProgress, PROGRESS_BATCH_INTERVAL);
+
+        mProgressed.add(d);
     }
 
     @Override
@@ -176,37 +571,89 @@ public class DownloadService extends Service {
         super.onCreate();
 
         mNotification = createNotification();
-        mListeners.add(mDownloadTaskListener);
+        mStore = new DownloadQueueStore(this);
+        mLocalFiles = LocalFileIndex.get(this);
+
+        // Pick up where the last process left off; partially-downloaded files are resumed
+        if (mPendingDownloads.isEmpty()) {
+            mStore.load(new DownloadQueueStore.LoadListener() {
+                @Override
+                public void onLoaded(final List<Download> restored) {
+                    if (mDestroyed || restored.isEmpty()) return;
+
+                    Log.i(logTag, "Restoring " + restored.size() + " queued downloads");
+                    attachCredentials(restored);
+
+                    // Anything queued again while the stored queue was being read is already there
+                    final List<Download> added = new ArrayList<Download>();
+                    for (final Download d : restored) {
+                        if (mPendingDownloads.add(d))
+                            added.add(d);
+                    }
+
+                    final Collection<Download> addition = Collections.unmodifiableList(added);
+                    for (final Listener l : mListeners)
+                        l.onAddition(addition);
+
+                    scheduleDownloads();
+                }
+            });
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mDestroyed = true;
 
-        if (mCurrentTask != null)
-            mCurrentTask.cancel(true);
+        for (final FolderEnumerator enumerator : mEnumerators)
+            enumerator.cancel();
+        mEnumerators.clear();
 
+        // The stored queue is left as it is, so that it's restored the next time the service starts
+        for (final DownloadTask task : mActiveTasks)
+            task.cancel(true);
+
+        mActiveTasks.clear();
         mPendingDownloads.clear();
+        mHandler.removeCallbacks(mDeliverProgress);
+        mHandler.removeCallbacks(mUpdateNotification);
+        mProgressed.clear();
+        mStore.close();
 
         cancelNotification();
     }
 
-    private void updateNotification(final CharSequence progress) {
-        mNotification.contentView.setTextViewText(R.id.progress, progress);
-
-        startForeground(R.string.download_service, mNotification);
-    }
+    // Shows the combined progress of every active download
+    private void updateNotification() {
+        final int activeCount = mActiveTasks.size(), queuedCount = mPendingDownloads.size() - activeCount;
+
+        long progress = 0;
+        for (final DownloadTask task : mActiveTasks)
+            progress += task.getDownload().getProgress();
+
+        final RemoteViews contentView = mNotification.contentView;
+
+        if (activeCount == 1) {
+            final Download d = mActiveTasks.get(0).getDownload();
+            contentView.setTextViewText(R.id.name, d.getName());
+            contentView.setTextViewText(R.id.path, queuedCount == 0 ?
+                    d.getSavePath() :
+                    getString(R.string.download_service_queued, queuedCount));
+        } else {
+            contentView.setTextViewText(R.id.name, getString(R.string.download_service_active, activeCount));
+            contentView.setTextViewText(R.id.path, getString(R.string.download_service_queued, queuedCount));
+        }
 
-    private void updateNotification(final CharSequence name, final CharSequence path) {
-        mNotification.contentView.setTextViewText(R.id.name, name);
-        mNotification.contentView.setTextViewText(R.id.path, path);
+        contentView.setTextViewText(R.id.progress, Download.formatSize(progress));
 
-        // clear progress text view
-        updateNotification("");
+        startForeground(R.string.download_service, mNotification);
+        mLastNotificationUpdate = System.currentTimeMillis();
     }
 
     private void cancelNotification() {
         stopForeground(true);
+        mLastNotificationUpdate = System.currentTimeMillis();
     }
 
     private Notification createNotification() {
@@ -227,12 +674,24 @@ public class DownloadService extends Service {
                 .getNotification();
     }
 
-    // A thread that performs the actual downloading
-    private static class DownloadTask extends AsyncTask<Void, Long, Download> {
-        private static final int BUFFER_SIZE = 1024;
+    // A thread that performs the actual downloading; several of these can run at once
+    // Its result is whether the file was saved in full
+    private class DownloadTask extends AsyncTask<Void, Void, Boolean> {
+        private static final int MAX_ATTEMPTS = 5;
+        private static final long RETRY_DELAY = 2000, SEGMENT_JOURNAL_INTERVAL = 1024 * 1024;
+
+        // How long a cancelled segmented download waits for its segments to stop, in seconds
+        private static final long SEGMENT_STOP_TIMEOUT = 30;
+
+        // Progress is published at most this often, however many chunks are copied in between; every publication is a
+        // message to the main thread that fans out to every listener
+        private static final long PROGRESS_INTERVAL = 250;
 
         private final Download mDownload;
 
+        // How much of the file has been saved, and when that was last published; updated by the copying threads
+        private final AtomicLong mBytesSaved = new AtomicLong(), mLastProgressTime = new AtomicLong();
+
         private DownloadTask(final Download download) {
             mDownload = download;
         }
@@ -252,90 +711,380 @@ public class DownloadService extends Service {
         }
 
         @Override
-        protected void onProgressUpdate(final Long... progress) {
-            super.onProgressUpdate(progress);
-
-            mDownload.setProgress(progress[0]);
+        protected void onProgressUpdate(final Void... unused) {
+            super.onProgressUpdate(unused);
 
-            for (final Listener dl : mListeners)
-                dl.onProgressUpdate(mDownload);
+            mDownload.setProgress(mBytesSaved.get());
+            onDownloadProgress(mDownload);
         }
 
         @Override
-        protected Download doInBackground(final Void... params) {
-            try {
-                // Get an InputStream for the file on the server
-                final InputStream input = Util.getStream(mDownload.getUrl(), mDownload.getUsername(),
-                        mDownload.getPassword());
+        protected Boolean doInBackground(final Void... params) {
+            if (mLocalFiles.isAvailable(mDownload.getServer(), mDownload.getMediaId(), mDownload.getFormat(),
+                    mDownload.getSavePath(), mDownload.getSize())) {
+                Log.d(logTag, "Already downloaded " + mDownload.getSavePath());
+                mBytesSaved.set(Math.max(0, mDownload.getSize()));
+                return true;
+            }
 
-                // Create the file on the local disk
-                final String savePath = mDownload.getSavePath();
-                final File outDir = new File(savePath.substring(0, savePath.lastIndexOf("/")));
+            final PartialDownload partial = new PartialDownload(mDownload.getUrl(), mDownload.getSavePath());
+
+            // A dropped connection is retried, continuing from wherever the last attempt stopped; anything else fails
+            // the download straight away
+            for (int attempt = 1; !isCancelled(); attempt++) {
+                try {
+                    if (!transfer(partial)) return false;
+
+                    partial.commit();
+                    mLocalFiles.add(mDownload.getServer(), mDownload.getMediaId(), mDownload.getFormat(),
+                            new File(mDownload.getSavePath()));
+                    return true;
+                } catch (final IOException e) {
+                    if (attempt == MAX_ATTEMPTS) {
+                        Log.e(logTag, "Giving up on " + mDownload.getUrl() + " at byte " + partial.getLength(), e);
+                        return false;
+                    }
+
+                    Log.w(logTag, "Download of " + mDownload.getUrl() + " interrupted at byte " + partial.getLength() +
+                            "; retrying", e);
+                    SystemClock.sleep(RETRY_DELAY * attempt);
+                } catch (final Exception e) {
+                    Log.e(logTag, "Error downloading " + mDownload.getUrl(), e);
+                    return false;
+                }
+            }
 
-                outDir.mkdirs();
+            return false;
+        }
 
-                final OutputStream output = new FileOutputStream(savePath);
+        // Saves as much of the file as possible into the part file; returns whether it got to the end
+        private boolean transfer(final PartialDownload partial) throws AuthenticationException, IOException {
+            if (partial.isComplete()) return true;
+            if (partial.isSegmented()) return transferSegments(partial, null);
+
+            final String url = mDownload.getUrl(), username = mDownload.getUsername(),
+                    password = mDownload.getPassword();
+
+            // A big file is started by asking for just its first segment; if the server obliges, the rest of the
+            // segments are requested alongside it
+            final boolean segment = mDownload.isSegmented() && partial.getLength() == 0;
+            final long segmentLength = (mDownload.getSize() + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+
+            MediaStream media = segment ?
+                    Util.getMediaStream(url, username, password, 0, segmentLength - 1, null) :
+                    Util.getMediaStream(url, username, password, partial.getLength(), -1, partial.getValidator());
+
+            if (segment && media.isPartial()) {
+                if (media.getTotalLength() > 0) {
+                    try {
+                        partial.startSegmented(media, segmentLength);
+                    } catch (final IOException e) {
+                        closeQuietly(media);
+                        throw e;
+                    }
+
+                    return transferSegments(partial, media);
+                }
 
-                final byte[] data = new byte[BUFFER_SIZE];
-                long total = 0;
-                int count;
+                // Without the total length the file can't be split up, so fetch it whole instead
+                closeQuietly(media);
+                media = Util.getMediaStream(url, username, password, 0, -1, null);
+            }
+
+            FileChannel output = null;
+            final ByteBuffer buffer = acquireCopyBuffer();
+
+            try {
+                output = partial.open(media);
+                mBytesSaved.set(media.getOffset());
+
+                final ReadableByteChannel input = Channels.newChannel(media.getStream());
 
                 // Read and save data until cancellation or end of file
-                while (!isCancelled() && (count = input.read(data)) != -1) {
-                    total += count;
-                    publishProgress(total);
-                    output.write(data, 0, count);
+                while (!isCancelled() && input.read(buffer) != -1) {
+                    buffer.flip();
+                    final int count = buffer.remaining();
+
+                    while (buffer.hasRemaining())
+                        output.write(buffer);
+
+                    buffer.clear();
+                    addProgress(count);
+                    mRateLimiter.acquire(count);
                 }
 
-                output.flush();
-                output.close();
-                input.close();
-            } catch (final Exception e) {
-                // TODO: exception handling
-                Log.e(getClass().getSimpleName(), "Error", e);
+                return !isCancelled();
+            } finally {
+                releaseCopyBuffer(buffer);
+
+                // Closing the input before it's been read to the end (on cancellation or error) aborts the connection
+                // rather than returning it to the shared pool
+                closeQuietly(output);
+                closeQuietly(media);
             }
+        }
 
-            return mDownload;
+        private void addProgress(final int count) {
+            mBytesSaved.addAndGet(count);
+
+            final long now = SystemClock.uptimeMillis(), last = mLastProgressTime.get();
+            if (now - last >= PROGRESS_INTERVAL && mLastProgressTime.compareAndSet(last, now))
+                publishProgress();
+        }
+
+        /**
+         * Fetches every unfinished segment of a segmented download in parallel.
+         * @param firstSegment The already-open response for the first segment, or null to request it like the others
+         * @return Whether every segment got to its end
+         */
+        private boolean transferSegments(final PartialDownload partial, final MediaStream firstSegment)
+                throws AuthenticationException, IOException {
+            final int segmentCount = partial.getSegmentCount();
+            mBytesSaved.set(partial.getSavedLength());
+            final FileChannel channel = partial.openChannel();
+            final ExecutorService segmentThreads = Executors.newFixedThreadPool(segmentCount);
+
+            try {
+                final List<Future<Void>> results = new ArrayList<Future<Void>>(segmentCount);
+
+                for (int i = 0; i < segmentCount; i++) {
+                    final int segment = i;
+                    final MediaStream media = i == 0 ? firstSegment : null;
+
+                    if (partial.getSegmentPosition(i) >= partial.getSegmentEnd(i)) {
+                        closeQuietly(media);
+                        continue;
+                    }
+
+                    results.add(segmentThreads.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            transferSegment(partial, channel, segment, media);
+                            return null;
+                        }
+                    }));
+                }
+
+                // Wait for every segment, even after one fails, so that none is left writing to the file
+                Throwable failure = null;
+                for (final Future<Void> result : results) {
+                    try {
+                        result.get();
+                    } catch (final ExecutionException e) {
+                        if (failure == null)
+                            failure = e.getCause();
+                    } catch (final InterruptedException e) {
+                        // Cancelled; stop the segments, and save how far they got once they have
+                        stopSegments(segmentThreads);
+                        partial.saveProgress();
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+
+                // If the file has changed since the download started, it has to start over
+                if (failure instanceof FileChangedException)
+                    partial.discard();
+                else
+                    partial.saveProgress();
+
+                if (failure instanceof AuthenticationException)
+                    throw (AuthenticationException) failure;
+                else if (failure instanceof IOException)
+                    throw (IOException) failure;
+                else if (failure != null)
+                    throw new IOException(failure);
+
+                return !isCancelled();
+            } finally {
+                segmentThreads.shutdownNow();
+                closeQuietly(channel);
+            }
+        }
+
+        // Interrupts the segment threads and waits for them to finish, so that none is still writing to the file
+        private void stopSegments(final ExecutorService segmentThreads) {
+            segmentThreads.shutdownNow();
+
+            try {
+                if (!segmentThreads.awaitTermination(SEGMENT_STOP_TIMEOUT, TimeUnit.SECONDS))
+                    Log.w(logTag, "Segments of " + mDownload.getUrl() + " didn't stop in time");
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void transferSegment(final PartialDownload partial, final FileChannel channel, final int segment,
+                final MediaStream firstResponse) throws AuthenticationException, IOException {
+            final long end = partial.getSegmentEnd(segment);
+
+            final MediaStream media = firstResponse != null ?
+                    firstResponse :
+                    Util.getMediaStream(mDownload.getUrl(), mDownload.getUsername(), mDownload.getPassword(),
+                            partial.getSegmentPosition(segment), end - 1, partial.getValidator());
+            final ByteBuffer buffer = acquireCopyBuffer();
+
+            try {
+                if (!media.isPartial() || media.getOffset() != partial.getSegmentPosition(segment) ||
+                        media.getTotalLength() != partial.getExpectedLength())
+                    throw new FileChangedException("Server didn't resume segment " + segment + " of " +
+                            mDownload.getUrl());
+
+                final ReadableByteChannel input = Channels.newChannel(media.getStream());
+                long remaining, unjournalled = 0;
+
+                while (!isCancelled() && (remaining = end - partial.getSegmentPosition(segment)) > 0) {
+                    // Never read past the end of the segment, into the next one
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                    if (input.read(buffer) == -1) break;
+
+                    buffer.flip();
+                    final int count = buffer.remaining();
+
+                    partial.write(channel, segment, buffer);
+                    buffer.clear();
+                    addProgress(count);
+                    mRateLimiter.acquire(count);
+
+                    // Keep the journal roughly up to date, so that not much has to be fetched again after a crash
+                    unjournalled += count;
+                    if (unjournalled >= SEGMENT_JOURNAL_INTERVAL) {
+                        partial.saveProgress();
+                        unjournalled = 0;
+                    }
+                }
+
+                if (!isCancelled() && partial.getSegmentPosition(segment) < end)
+                    throw new IOException("Segment " + segment + " of " + mDownload.getUrl() + " ended early");
+            } finally {
+                releaseCopyBuffer(buffer);
+                closeQuietly(media);
+            }
         }
 
         @Override
-        protected void onPostExecute(final Download d) {
-            super.onPostExecute(d);
+        protected void onPostExecute(final Boolean saved) {
+            super.onPostExecute(saved);
+
+            mDownload.setProgress(mBytesSaved.get());
 
-            d.setCompleted();
+            if (!saved) {
+                onDownloadFailed(this);
+                return;
+            }
+
+            mDownload.setCompleted();
 
             for (final Listener dl : mListeners)
-                dl.onCompletion(d);
+                dl.onCompletion(mDownload);
+
+            onDownloadFinished(this);
         }
 
         @Override
-        protected void onCancelled(final Download d) {
-            new File(d.getSavePath()).delete();
+        protected void onCancelled(final Boolean saved) {
+            // Keep the partial file if the service is just shutting down, so the download can be resumed later
+            if (mDownload.isCancelled())
+                new PartialDownload(mDownload.getUrl(), mDownload.getSavePath()).discard();
+        }
+    }
+
+    // Direct buffers for copying downloads to disk; they're recycled, so that the copy loops don't allocate anything
+    private static final int COPY_BUFFER_SIZE = 64 * 1024, COPY_BUFFER_POOL_SIZE = 8;
+    private static final BlockingQueue<ByteBuffer> mCopyBuffers =
+            new ArrayBlockingQueue<ByteBuffer>(COPY_BUFFER_POOL_SIZE);
+
+    private static ByteBuffer acquireCopyBuffer() {
+        final ByteBuffer buffer = mCopyBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+    }
+
+    // Returns a buffer to the pool; if the pool is already full, the buffer is left for the garbage collector
+    private static void releaseCopyBuffer(final ByteBuffer buffer) {
+        buffer.clear();
+        mCopyBuffers.offer(buffer);
+    }
+
+    // Thrown when a segment can't be resumed because the file on the server isn't the one that was being downloaded
+    private static class FileChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private FileChangedException(final String message) {
+            super(message);
+        }
+    }
+
+    private static void closeQuietly(final Closeable c) {
+        if (c == null) return;
+
+        try {
+            c.close();
+        } catch (final IOException e) {
+            Log.w(logTag, "Error closing stream", e);
         }
     }
 
     static class Download {
-        private boolean mStarted = false, mCompleted = false, mCancelled = false;
-        private long mProgress;
+        // Downloads queued as part of a folder, downloads the user asked for individually, and downloads the user moved
+        // to the front of the queue; higher priorities are always started first
+        static final int PRIORITY_NORMAL = 0, PRIORITY_HIGH = 1, PRIORITY_TOP = 2;
+
+        // Changed on the main thread, but read by the download threads too
+        private volatile boolean mStarted = false, mCompleted = false, mCancelled = false, mFailed = false;
+        private volatile long mProgress;
+        private volatile int mPriority;
+
+        private final int mMediaId, mParentId;
+        private final boolean mTranscoded;
+        private final String mServer, mFormat, mName, mUrl, mSavePath, mHost;
+        private final long mSize;
+
+        // Not known for a restored download until its server's access information is
+        private volatile String mUsername, mPassword;
+
+        int getMediaId()       { return mMediaId;    }
+        int getParentId()      { return mParentId;   }
+        boolean isTranscoded() { return mTranscoded; }
+        String getServer()     { return mServer;     }
+        String getFormat()     { return mFormat;     }
+        String getName()       { return mName;       }
+        String getUrl()        { return mUrl;        }
+        String getSavePath()   { return mSavePath;   }
+        String getUsername()   { return mUsername;   }
+        String getPassword()   { return mPassword;   }
+        String getHost()       { return mHost;       }
+        long getSize()         { return mSize;       }
+
+        boolean isSegmented() {
+            return mSize >= SEGMENTED_DOWNLOAD_THRESHOLD;
+        }
 
-        private final String mName, mUrl, mSavePath, mUsername, mPassword;
+        // How many connections the download may hold open at once
+        int getConnectionCount() {
+            return isSegmented() ? SEGMENT_COUNT : 1;
+        }
 
-        String getName()     { return mName;     }
-        String getUrl()      { return mUrl;      }
-        String getSavePath() { return mSavePath; }
-        String getUsername() { return mUsername; }
-        String getPassword() { return mPassword; }
+        // Identifies what's being downloaded: the same file can be queued once as the original and once transcoded
+        Long getKey() {
+            return ((long) mMediaId << 1) | (mTranscoded ? 1 : 0);
+        }
 
         @Override
         public boolean equals(final Object o) {
-            return (o instanceof Download && ((Download) o).getUrl().equals(mUrl));
+            return o instanceof Download && ((Download) o).mMediaId == mMediaId &&
+                    ((Download) o).mTranscoded == mTranscoded;
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode();
         }
 
         private void setStarted()   { mStarted = true;   }
         private void setCompleted() { mCompleted = true; }
         private void setCancelled() { mCancelled = true; }
 
-        private void setProgress(final long progress) {
+        void setProgress(final long progress) {
             mProgress = progress;
         }
 
@@ -343,32 +1092,77 @@ public class DownloadService extends Service {
             return mProgress;
         }
 
+        void setPriority(final int priority) {
+            mPriority = priority;
+        }
+
+        int getPriority() {
+            return mPriority;
+        }
+
+        void setCredentials(final String username, final String password) {
+            mUsername = username;
+            mPassword = password;
+        }
+
+        boolean hasCredentials() {
+            return mUsername != null;
+        }
+
+        // A failed download counts as not started again, so that it can be moved to the front (which retries it)
+        void setFailed(final boolean failed) {
+            mFailed = failed;
+            if (failed) mStarted = false;
+        }
+
+        boolean isFailed() {
+            return mFailed;
+        }
+
         boolean isStarted()   { return mStarted;   }
         boolean isCompleted() { return mCompleted; }
         boolean isCancelled() { return mCancelled; }
 
-        private Download(final String name, final String url, final String savePath, final String username,
-                final String password) {
+        /**
+         * @param server The table of the data source the file is from
+         * @param format The suffix of the format it's downloaded in
+         * @param username The server's username, or null if it isn't known yet (see setCredentials())
+         */
+        Download(final int mediaId, final int parentId, final boolean transcoded, final String server,
+                final String format, final String name, final String url, final String savePath,
+                final String username, final String password, final long size, final int priority) {
+            mMediaId = mediaId;
+            mParentId = parentId;
+            mServer = server;
+            mFormat = format;
+            mPriority = priority;
+            mTranscoded = transcoded;
             mName = name;
             mUrl = url;
             mSavePath = savePath;
             mUsername = username;
             mPassword = password;
+            mHost = Uri.parse(url).getHost();
+            mSize = size;
         }
 
-        private final long KB = 1L << 10, MB = KB << 10, GB = MB << 10, TB = GB << 10;
+        private static final long KB = 1L << 10, MB = KB << 10, GB = MB << 10, TB = GB << 10;
 
         String getProgressString() {
-            if (mProgress >= TB)
-                    return String.format("%.2fTB", (double) mProgress / TB);
-                else if (mProgress >= GB)
-                    return String.format("%.2fGB", (double) mProgress / GB);
-                else if (mProgress >= MB)
-                    return String.format("%.2fMB", (double) mProgress / MB);
-                else if (mProgress >= KB)
-                    return String.format("%.2fKB", (double) mProgress / KB);
-                else
-                    return String.format("%dB", mProgress);
+            return formatSize(mProgress);
+        }
+
+        static String formatSize(final long bytes) {
+            if (bytes >= TB)
+                return String.format("%.2fTB", (double) bytes / TB);
+            else if (bytes >= GB)
+                return String.format("%.2fGB", (double) bytes / GB);
+            else if (bytes >= MB)
+                return String.format("%.2fMB", (double) bytes / MB);
+            else if (bytes >= KB)
+                return String.format("%.2fKB", (double) bytes / KB);
+            else
+                return String.format("%dB", bytes);
         }
     }
 }
\ No newline at end of file
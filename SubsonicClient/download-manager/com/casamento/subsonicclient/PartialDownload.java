@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.util.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * A download in progress, kept in "<save path>.part" until it's complete and then renamed into place. Alongside it is
+ * a journal recording where the data came from, how long the whole file is and its validator, so that an interrupted
+ * download (including one from before a restart) can be continued with a range request instead of started over.
+ *
+ * A large file can instead be downloaded in segments, each fetched over its own connection and written in place into
+ * a part file that's preallocated to the full length; the journal then also records how far each segment has got.
+ */
+final class PartialDownload {
+    private static final String logTag = "PartialDownload";
+
+    private static final String PART_SUFFIX = ".part", JOURNAL_SUFFIX = ".journal";
+    private static final String KEY_URL = "url", KEY_LENGTH = "length", KEY_VALIDATOR = "validator",
+            KEY_SEGMENTS = "segments";
+
+    private final String mUrl;
+    private final File mFile, mPartFile, mJournalFile;
+
+    private long mExpectedLength = -1;
+    private String mValidator;
+
+    // For a segmented download, the range of bytes [start, end) of each segment and how far it's been saved; guarded
+    // by this
+    private long[] mSegmentStarts, mSegmentEnds, mSegmentPositions;
+
+    PartialDownload(final String url, final String savePath) {
+        mUrl = url;
+        mFile = new File(savePath);
+        mPartFile = new File(savePath + PART_SUFFIX);
+        mJournalFile = new File(savePath + PART_SUFFIX + JOURNAL_SUFFIX);
+
+        readJournal();
+    }
+
+    // Picks up a previous attempt at the same URL; anything else left over is discarded
+    private void readJournal() {
+        if (mJournalFile.exists() && mPartFile.exists()) {
+            final Properties journal = new Properties();
+
+            try {
+                final InputStream in = new FileInputStream(mJournalFile);
+                try {
+                    journal.load(in);
+                } finally {
+                    in.close();
+                }
+
+                if (mUrl.equals(journal.getProperty(KEY_URL))) {
+                    mExpectedLength = Long.parseLong(journal.getProperty(KEY_LENGTH, "-1"));
+                    mValidator = journal.getProperty(KEY_VALIDATOR);
+
+                    final String segments = journal.getProperty(KEY_SEGMENTS);
+                    if (segments != null)
+                        parseSegments(segments);
+
+                    Log.i(logTag, "Resuming " + mFile + " at byte " + mPartFile.length());
+                    return;
+                }
+            } catch (final Exception e) {
+                Log.w(logTag, "Discarding unreadable journal " + mJournalFile, e);
+            }
+        }
+
+        discard();
+    }
+
+    // Segments are journalled as "<start>-<end>-<position>", separated by commas
+    private void parseSegments(final String segments) {
+        final String[] parts = segments.split(",");
+        final long[] starts = new long[parts.length], ends = new long[parts.length], positions = new long[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            final String[] fields = parts[i].split("-");
+            starts[i] = Long.parseLong(fields[0]);
+            ends[i] = Long.parseLong(fields[1]);
+            positions[i] = Long.parseLong(fields[2]);
+        }
+
+        mSegmentStarts = starts;
+        mSegmentEnds = ends;
+        mSegmentPositions = positions;
+    }
+
+    private String formatSegments() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSegmentStarts.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(mSegmentStarts[i]).append('-').append(mSegmentEnds[i]).append('-').append(mSegmentPositions[i]);
+        }
+
+        return sb.toString();
+    }
+
+    private synchronized void writeJournal() throws IOException {
+        final Properties journal = new Properties();
+        journal.setProperty(KEY_URL, mUrl);
+        journal.setProperty(KEY_LENGTH, Long.toString(mExpectedLength));
+        if (mValidator != null)
+            journal.setProperty(KEY_VALIDATOR, mValidator);
+        if (mSegmentStarts != null)
+            journal.setProperty(KEY_SEGMENTS, formatSegments());
+
+        final OutputStream out = new FileOutputStream(mJournalFile);
+        try {
+            journal.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    // The number of bytes that have been saved so far, i.e. where to resume from
+    long getLength() {
+        return mPartFile.length();
+    }
+
+    String getValidator() {
+        return mValidator;
+    }
+
+    // Whether everything has been saved already, e.g. if the last attempt died just before committing
+    synchronized boolean isComplete() {
+        if (mSegmentStarts != null) {
+            for (int i = 0; i < mSegmentStarts.length; i++) {
+                if (mSegmentPositions[i] < mSegmentEnds[i])
+                    return false;
+            }
+
+            return true;
+        }
+
+        return mExpectedLength >= 0 && getLength() == mExpectedLength;
+    }
+
+    // The length of the whole file, or -1 if unknown
+    synchronized long getExpectedLength() {
+        return mExpectedLength;
+    }
+
+    synchronized boolean isSegmented() {
+        return mSegmentStarts != null;
+    }
+
+    /**
+     * Starts a segmented download over from the beginning: preallocates the part file and splits it into segments.
+     * @param media The response to the request for the first segment, which must be partial and give the total length
+     * @param firstSegmentLength The length of each segment but the last, which gets whatever's left over
+     */
+    synchronized void startSegmented(final MediaStream media, final long firstSegmentLength) throws IOException {
+        discard();
+
+        mExpectedLength = media.getTotalLength();
+        mValidator = media.getValidator();
+
+        final int count = (int) ((mExpectedLength + firstSegmentLength - 1) / firstSegmentLength);
+        mSegmentStarts = new long[count];
+        mSegmentEnds = new long[count];
+        mSegmentPositions = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            mSegmentStarts[i] = mSegmentPositions[i] = i * firstSegmentLength;
+            mSegmentEnds[i] = Math.min(mExpectedLength, (i + 1) * firstSegmentLength);
+        }
+
+        mPartFile.getParentFile().mkdirs();
+        final RandomAccessFile file = new RandomAccessFile(mPartFile, "rw");
+        try {
+            file.setLength(mExpectedLength);
+        } finally {
+            file.close();
+        }
+
+        writeJournal();
+    }
+
+    synchronized int getSegmentCount() {
+        return mSegmentStarts.length;
+    }
+
+    synchronized long getSegmentPosition(final int segment) {
+        return mSegmentPositions[segment];
+    }
+
+    synchronized long getSegmentEnd(final int segment) {
+        return mSegmentEnds[segment];
+    }
+
+    // The number of bytes saved so far, across all segments
+    synchronized long getSavedLength() {
+        if (mSegmentStarts == null)
+            return getLength();
+
+        long saved = 0;
+        for (int i = 0; i < mSegmentStarts.length; i++)
+            saved += mSegmentPositions[i] - mSegmentStarts[i];
+
+        return saved;
+    }
+
+    // Opens the part file of a segmented download for writing at arbitrary positions; it's safe to write to from many
+    // threads at once, as long as they write to different places
+    FileChannel openChannel() throws IOException {
+        return new RandomAccessFile(mPartFile, "rw").getChannel();
+    }
+
+    /**
+     * Writes the remaining contents of a buffer into a segment at its current position, and advances the segment past
+     * them. The journal isn't updated until saveProgress() is called.
+     */
+    void write(final FileChannel channel, final int segment, final ByteBuffer buffer) throws IOException {
+        long position = getSegmentPosition(segment);
+        if (position + buffer.remaining() > getSegmentEnd(segment))
+            throw new IOException("Segment " + segment + " of " + mFile + " overran its end");
+
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+
+        synchronized (this) {
+            mSegmentPositions[segment] = position;
+        }
+    }
+
+    // Records in the journal how far each segment has got
+    void saveProgress() throws IOException {
+        writeJournal();
+    }
+
+    /**
+     * Opens the part file to save a response into: appended to if the response continues it, or otherwise started over
+     * (and journalled) from the beginning.
+     * @param media The response being saved
+     * @return The channel to write the response to
+     */
+    FileChannel open(final MediaStream media) throws IOException {
+        // The server only sends part of the file if the validator still matches; without a validator, checking that
+        // the file is still the same length is the best that can be done
+        final boolean resuming = media.isPartial() && media.getOffset() == getLength() &&
+                (mExpectedLength < 0 || media.getTotalLength() < 0 || media.getTotalLength() == mExpectedLength);
+
+        if (!resuming) {
+            if (media.isPartial()) {
+                // Start from scratch on the next attempt
+                discard();
+                throw new IOException("Couldn't resume " + mFile + " at byte " + media.getOffset());
+            }
+
+            mPartFile.getParentFile().mkdirs();
+            mExpectedLength = media.getTotalLength();
+            mValidator = media.getValidator();
+            writeJournal();
+        }
+
+        return new FileOutputStream(mPartFile, resuming).getChannel();
+    }
+
+    // Moves the finished file into place
+    synchronized void commit() throws IOException {
+        if (mSegmentStarts != null && !isComplete())
+            throw new IOException("Segmented download of " + mFile + " is missing data");
+
+        if (mExpectedLength >= 0 && getLength() != mExpectedLength)
+            throw new IOException("Download of " + mFile + " ended at byte " + getLength() + " of " + mExpectedLength);
+
+        mFile.delete();
+        if (!mPartFile.renameTo(mFile))
+            throw new IOException("Couldn't rename " + mPartFile + " to " + mFile);
+
+        mJournalFile.delete();
+    }
+
+    // Throws away whatever has been saved
+    synchronized void discard() {
+        mPartFile.delete();
+        mJournalFile.delete();
+        mExpectedLength = -1;
+        mValidator = null;
+        mSegmentStarts = mSegmentEnds = mSegmentPositions = null;
+    }
+}
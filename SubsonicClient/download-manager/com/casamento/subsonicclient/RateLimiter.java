@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.os.SystemClock;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A token bucket shared by every download stream, pacing them so that together they stay under the configured rate.
+ * While the user is browsing (see HttpClientPool.isInteractive()), downloads are also held to a share of the throughput
+ * they were getting beforehand, so that the browsing requests aren't left queuing behind them for bandwidth.
+ */
+final class RateLimiter {
+    // A full bucket lets this much time's worth of data through at once
+    private static final long BURST_TIME = 500;
+
+    // While browsing, downloads get this share of their recent throughput
+    private static final double INTERACTIVE_SHARE = 0.5;
+
+    // Throughput is measured over windows of this length, and each window moves the estimate this far towards it;
+    // windows that were throttled for browsing or that span a pause in downloading aren't counted
+    private static final long SAMPLE_INTERVAL = 1000;
+    private static final double SMOOTHING = 0.3;
+
+    private long mMaxRate = 0;
+    private double mTokens = 0;
+    private long mLastRefill = SystemClock.uptimeMillis();
+
+    private double mThroughput = 0;
+    private long mSampleStart = SystemClock.uptimeMillis(), mSampleBytes = 0;
+    private boolean mSampleThrottled = false;
+
+    /**
+     * @param bytesPerSecond The most that all downloads together may transfer per second, or 0 for no limit
+     */
+    synchronized void setMaxRate(final long bytesPerSecond) {
+        mMaxRate = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Accounts for data that has just been read, and waits until reading it has been paid for. Waiting after the read
+     * rather than before means that a read can be any size, however low the rate.
+     * @param bytes How much was read
+     * @throws InterruptedIOException If the thread was interrupted while waiting
+     */
+    void acquire(final int bytes) throws InterruptedIOException {
+        final long wait = reserve(bytes);
+        if (wait <= 0) return;
+
+        try {
+            Thread.sleep(wait);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling download");
+        }
+    }
+
+    // Takes the tokens for the given number of bytes, going into debt if there aren't enough; returns how long to wait
+    // (in milliseconds) for the debt to be paid off
+    private synchronized long reserve(final int bytes) {
+        final long now = SystemClock.uptimeMillis();
+        final boolean interactive = HttpClientPool.isInteractive();
+
+        sample(now, bytes, interactive);
+
+        final double rate = getRate(interactive);
+        if (rate <= 0) {
+            mLastRefill = now;
+            return 0;
+        }
+
+        mTokens = Math.min(rate * BURST_TIME / 1000, mTokens + rate * (now - mLastRefill) / 1000);
+        mLastRefill = now;
+        mTokens -= bytes;
+
+        return mTokens >= 0 ? 0 : (long) Math.ceil(-mTokens * 1000 / rate);
+    }
+
+    // The rate downloads are held to right now, in bytes per second; 0 if they aren't limited
+    private double getRate(final boolean interactive) {
+        final double reserved = interactive ? mThroughput * INTERACTIVE_SHARE : 0;
+
+        if (reserved <= 0)
+            return mMaxRate;
+        else
+            return mMaxRate == 0 ? reserved : Math.min(mMaxRate, reserved);
+    }
+
+    private void sample(final long now, final int bytes, final boolean interactive) {
+        mSampleBytes += bytes;
+        mSampleThrottled |= interactive;
+
+        final long elapsed = now - mSampleStart;
+        if (elapsed < SAMPLE_INTERVAL) return;
+
+        if (!mSampleThrottled && elapsed < 2 * SAMPLE_INTERVAL) {
+            final double throughput = mSampleBytes * 1000.0 / elapsed;
+            mThroughput = mThroughput == 0 ? throughput : mThroughput + SMOOTHING * (throughput - mThroughput);
+        }
+
+        mSampleStart = now;
+        mSampleBytes = 0;
+        mSampleThrottled = false;
+    }
+}
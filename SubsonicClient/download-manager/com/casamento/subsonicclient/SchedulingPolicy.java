@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The order in which DownloadService starts waiting downloads of the same priority. Each policy is given the waiting
+ * downloads in queue order, and returns them in the order they should be started.
+ */
+enum SchedulingPolicy {
+    // First come, first served
+    QUEUE_ORDER {
+        @Override
+        List<DownloadService.Download> order(final List<DownloadService.Download> queued) {
+            return queued;
+        }
+    },
+
+    // Smallest first, so that one huge file doesn't hold up lots of small ones; files whose size isn't known (i.e.
+    // transcoded ones) go last
+    SMALLEST_FIRST {
+        private final Comparator<DownloadService.Download> mBySize = new Comparator<DownloadService.Download>() {
+            @Override
+            public int compare(final DownloadService.Download a, final DownloadService.Download b) {
+                final long aSize = a.getSize() < 0 ? Long.MAX_VALUE : a.getSize(),
+                        bSize = b.getSize() < 0 ? Long.MAX_VALUE : b.getSize();
+
+                return aSize < bSize ? -1 : (aSize == bSize ? 0 : 1);
+            }
+        };
+
+        @Override
+        List<DownloadService.Download> order(final List<DownloadService.Download> queued) {
+            // The sort is stable, so files of the same size stay in queue order
+            final List<DownloadService.Download> ordered = new ArrayList<DownloadService.Download>(queued);
+            Collections.sort(ordered, mBySize);
+            return ordered;
+        }
+    },
+
+    // One download from each folder in turn, so that queuing a big folder doesn't hold up everything queued after it
+    FOLDER_ROUND_ROBIN {
+        @Override
+        List<DownloadService.Download> order(final List<DownloadService.Download> queued) {
+            final Map<Integer, LinkedList<DownloadService.Download>> byFolder =
+                    new LinkedHashMap<Integer, LinkedList<DownloadService.Download>>();
+
+            for (final DownloadService.Download d : queued) {
+                LinkedList<DownloadService.Download> folder = byFolder.get(d.getParentId());
+                if (folder == null) {
+                    folder = new LinkedList<DownloadService.Download>();
+                    byFolder.put(d.getParentId(), folder);
+                }
+                folder.add(d);
+            }
+
+            // Folders are dropped from the rotation as they run out, so each round only visits folders with files left
+            final List<LinkedList<DownloadService.Download>> rotation =
+                    new LinkedList<LinkedList<DownloadService.Download>>(byFolder.values());
+            final List<DownloadService.Download> ordered = new ArrayList<DownloadService.Download>(queued.size());
+
+            while (!rotation.isEmpty()) {
+                final Iterator<LinkedList<DownloadService.Download>> it = rotation.iterator();
+                while (it.hasNext()) {
+                    final LinkedList<DownloadService.Download> folder = it.next();
+                    ordered.add(folder.removeFirst());
+                    if (folder.isEmpty()) it.remove();
+                }
+            }
+
+            return ordered;
+        }
+    };
+
+    abstract List<DownloadService.Download> order(List<DownloadService.Download> queued);
+
+    // Gets the policy with the given name (as stored in the preferences), or the default if there isn't one
+    static SchedulingPolicy fromName(final String name) {
+        if (name != null) {
+            try {
+                return valueOf(name);
+            } catch (final IllegalArgumentException e) {
+                // fall through to the default
+            }
+        }
+
+        return QUEUE_ORDER;
+    }
+}
@@ -29,6 +29,11 @@ import android.database.Cursor;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 abstract class FilesystemEntry implements Parcelable {
     final Integer id;
     final boolean isFolder;
@@ -69,15 +74,63 @@ abstract class FilesystemEntry implements Parcelable {
         return name;
     }
 
-    ContentValues getContentValues() {
-        final ContentValues cv = new ContentValues();
+    final ContentValues getContentValues() {
+        final ContentValues cv = new ContentValues(DatabaseHelper.COLUMNS.length);
+        putContentValues(cv);
+        return cv;
+    }
 
+    // Subclasses add their own attributes, after calling through to this
+    void putContentValues(final ContentValues cv) {
         cv.put(DatabaseHelper.ID.name, id);
         cv.put(DatabaseHelper.NAME.name, name);
         cv.put(DatabaseHelper.PARENT_FOLDER.name, parentId);
         cv.put(DatabaseHelper.IS_FOLDER.name, isFolder ? 1 : 0);
+        cv.put(DatabaseHelper.SORT_KEY.name, getSortKey(name, null));
+    }
 
-        return cv;
+    private static final Pattern
+            DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+"),
+            LEADING_ARTICLE = Pattern.compile("^(the|an|a)\\s+"),
+            NUMBER = Pattern.compile("\\d+");
+
+    // Numbers are zero-padded to this many digits, so that they sort by value rather than character by character
+    private static final int NUMBER_WIDTH = 10;
+
+    /**
+     * Works out the key an entry is sorted by in folder listings, so that the database can keep entries in order in an
+     * index rather than sorting them for every query. Numbered tracks come first, in track order; then everything else
+     * by name, ignoring case, accents and a leading "The", "A" or "An", with numbers in names sorted by value.
+     * @param name The entry's name
+     * @param trackNumber The entry's track number, or null (or 0) if it doesn't have one
+     * @return The sort key
+     */
+    static String getSortKey(final String name, final Integer trackNumber) {
+        String folded = name == null ? "" : Normalizer.normalize(name, Normalizer.Form.NFD);
+        folded = DIACRITICS.matcher(folded).replaceAll("").toLowerCase(Locale.ENGLISH).trim();
+        folded = LEADING_ARTICLE.matcher(folded).replaceFirst("");
+
+        final StringBuffer key = new StringBuffer();
+
+        if (trackNumber != null && trackNumber > 0)
+            key.append('0').append(padNumber(trackNumber.toString())).append(' ');
+        else
+            key.append('1');
+
+        final Matcher numbers = NUMBER.matcher(folded);
+        while (numbers.find())
+            numbers.appendReplacement(key, padNumber(numbers.group()));
+        numbers.appendTail(key);
+
+        return key.toString();
+    }
+
+    private static String padNumber(final String digits) {
+        final StringBuilder padded = new StringBuilder(NUMBER_WIDTH);
+        for (int i = digits.length(); i < NUMBER_WIDTH; i++)
+            padded.append('0');
+
+        return padded.append(digits).toString();
     }
 
     @Override
@@ -69,10 +69,10 @@ final class Folder extends FilesystemEntry {
         created = Util.getDateFromISOString(c.getString(c.getColumnIndex(DatabaseHelper.CREATED.name)));
     }
 
-    // Get a ContentValues object representing this folder's members, to insert into a database
-    ContentValues getContentValues() {
-        final ContentValues cv = new ContentValues();
-        cv.putAll(super.getContentValues());
+    // Adds this folder's members to a ContentValues object, to insert into a database
+    @Override
+    void putContentValues(final ContentValues cv) {
+        super.putContentValues(cv);
 
         cv.put(DatabaseHelper.COVER_ART_ID.name, coverArtId);
         cv.put(DatabaseHelper.ARTIST.name, artist);
@@ -81,8 +81,6 @@ final class Folder extends FilesystemEntry {
 
         if (created != null)
             cv.put(DatabaseHelper.CREATED.name, Util.getISOStringFromDate(created));
-
-        return cv;
     }
 
     // Called when the object is serialized to a Parcel (for inter-process communication)
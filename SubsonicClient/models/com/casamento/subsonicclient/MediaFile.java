@@ -72,9 +72,9 @@ final class MediaFile extends FilesystemEntry {
         created = Util.getDateFromISOString(c.getString(c.getColumnIndex(DatabaseHelper.CREATED.name)));
     }
 
-    ContentValues getContentValues() {
-        final ContentValues cv = new ContentValues();
-        cv.putAll(super.getContentValues());
+    @Override
+    void putContentValues(final ContentValues cv) {
+        super.putContentValues(cv);
 
         cv.put(DatabaseHelper.PATH.name, path);
         cv.put(DatabaseHelper.SUFFIX.name, suffix);
@@ -86,8 +86,7 @@ final class MediaFile extends FilesystemEntry {
         cv.put(DatabaseHelper.DURATION.name, duration);
         cv.put(DatabaseHelper.COVER_ART_ID.name, coverArtId);
         cv.put(DatabaseHelper.CREATED.name, Util.getISOStringFromDate(created));
-
-        return cv;
+        cv.put(DatabaseHelper.SORT_KEY.name, getSortKey(name, trackNumber));
     }
 
     @Override
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Retrieves the contents of the folders in a listing before they're opened, so that opening one doesn't have to wait
+ * on the network. Folders the user can see are retrieved first, then the ones next to them; only a few retrievals run
+ * at once, so the prefetches never crowd out the folder the user actually opens.
+ */
+final class FolderPrefetcher {
+    private static final String logTag = "FolderPrefetcher";
+
+    private static final int MAX_CONCURRENT_PREFETCHES = 2, MAX_CANDIDATES = 24;
+
+    private final DataSource mDataSource;
+
+    // Checks the database for each candidate before it's retrieved, off the UI thread
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // All of the following are guarded by this
+    private final LinkedList<Folder> mPending = new LinkedList<Folder>();
+    private final Set<Integer> mInFlight = new HashSet<Integer>(), mOpenedInFlight = new HashSet<Integer>();
+    private final Map<Integer, Long> mUnopened = new HashMap<Integer, Long>();
+    private int mGeneration = 0;
+    private long mPrefetchCount = 0, mHitCount = 0, mWastedCount = 0, mBytesWasted = 0;
+
+    FolderPrefetcher(final DataSource dataSource) {
+        mDataSource = dataSource;
+    }
+
+    /**
+     * Starts prefetching the folders in a listing, replacing any prefetching that's still pending from a previous one.
+     * @param cursor The listing
+     * @param firstVisible The position of the first row on screen
+     * @param lastVisible The position of the last row on screen
+     */
+    synchronized void prefetch(final Cursor cursor, final int firstVisible, final int lastVisible) {
+        cancel();
+
+        final int count = cursor.getCount();
+        if (count == 0) return;
+
+        final int originalPosition = cursor.getPosition();
+        final int first = Math.max(0, Math.min(firstVisible, count - 1));
+        final int last = Math.max(first, Math.min(lastVisible, count - 1));
+
+        // Visible rows from the top down, then outward from the visible ones, alternating below and above
+        int considered = 0;
+        for (int pos = first; pos <= last && considered < MAX_CANDIDATES; pos++, considered++)
+            addCandidate(cursor, pos);
+
+        for (int i = 1; considered < MAX_CANDIDATES && (last + i < count || first - i >= 0); i++) {
+            if (last + i < count) {
+                addCandidate(cursor, last + i);
+                considered++;
+            }
+
+            if (first - i >= 0 && considered < MAX_CANDIDATES) {
+                addCandidate(cursor, first - i);
+                considered++;
+            }
+        }
+
+        cursor.moveToPosition(originalPosition);
+
+        startPending();
+    }
+
+    private void addCandidate(final Cursor cursor, final int position) {
+        cursor.moveToPosition(position);
+
+        if (FilesystemEntry.isFolder(cursor))
+            mPending.add(new Folder(cursor));
+    }
+
+    /**
+     * Drops any prefetches that haven't started yet; ones that are already in progress finish and stay in the database.
+     * Prefetched folders that weren't opened before this are counted as wasted.
+     */
+    synchronized void cancel() {
+        mPending.clear();
+        mGeneration++;
+
+        if (!mUnopened.isEmpty()) {
+            for (final long bytes : mUnopened.values())
+                mBytesWasted += bytes;
+
+            mWastedCount += mUnopened.size();
+            mUnopened.clear();
+
+            Log.d(logTag, getStatistics());
+        }
+    }
+
+    // Notes that the user opened a folder, so that it counts as a hit if it was prefetched
+    synchronized void onOpen(final Folder folder) {
+        if (mUnopened.remove(folder.id) != null) {
+            mHitCount++;
+        } else if (mInFlight.contains(folder.id)) {
+            // The loader for the folder joins the prefetch that's in progress; it's a hit only if the prefetch succeeds
+            mOpenedInFlight.add(folder.id);
+        }
+    }
+
+    synchronized void shutdown() {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    synchronized String getStatistics() {
+        return String.format("%d folders prefetched, %d opened (%.1f%% hit rate), %d wasted (%d bytes)",
+                mPrefetchCount, mHitCount, mPrefetchCount == 0 ? 0.0 : 100.0 * mHitCount / mPrefetchCount,
+                mWastedCount, mBytesWasted);
+    }
+
+    // Starts as many pending prefetches as the concurrency budget allows
+    private synchronized void startPending() {
+        while (mInFlight.size() < MAX_CONCURRENT_PREFETCHES && !mPending.isEmpty() && !mExecutor.isShutdown()) {
+            final Folder folder = mPending.removeFirst();
+            if (mInFlight.contains(folder.id) || mUnopened.containsKey(folder.id)) continue;
+
+            mInFlight.add(folder.id);
+
+            final int generation = mGeneration;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled(generation) || mDataSource.hasFolderContents(folder)) {
+                        finish(folder, null, false);
+                        return;
+                    }
+
+                    mDataSource.prefetchFolderContents(folder, new DataSource.FolderContentsCallback() {
+                        @Override
+                        public void onFolderContentsStored(final Folder f, final long bytesReceived) {
+                            finish(f, bytesReceived, true);
+                        }
+
+                        @Override
+                        public void onError(final Folder f, final Exception e) {
+                            finish(f, null, false);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private synchronized boolean isCancelled(final int generation) {
+        return generation != mGeneration;
+    }
+
+    private synchronized void finish(final Folder folder, final Long bytesReceived, final boolean retrieved) {
+        mInFlight.remove(folder.id);
+
+        if (retrieved) {
+            mPrefetchCount++;
+
+            // Folders that were opened while they were being prefetched are hits now that the prefetch has succeeded
+            if (mOpenedInFlight.remove(folder.id))
+                mHitCount++;
+            else
+                mUnopened.put(folder.id, bytesReceived);
+        } else {
+            mOpenedInFlight.remove(folder.id);
+        }
+
+        startPending();
+    }
+}
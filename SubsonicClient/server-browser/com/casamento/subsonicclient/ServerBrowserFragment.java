@@ -48,6 +48,7 @@ public class ServerBrowserFragment extends ListFragment {
     private final Stack<Cursor> mCursorStack = new Stack<Cursor>();
     private final Stack<Folder> mFolderStack = new Stack<Folder>();
     private CursorAdapter mAdapter;
+    private FolderPrefetcher mPrefetcher;
 
     private ActivityCallback mActivity;
 
@@ -93,11 +94,37 @@ public class ServerBrowserFragment extends ListFragment {
         // Register for the scroll bar handle for fast scrolling
         lv.setFastScrollEnabled(true);
 
+        if (mPrefetcher == null)
+            mPrefetcher = new FolderPrefetcher(mActivity.getDataSource());
+
         // Initialize the fragment if nothing is currently shown
         if (mFolderStack.isEmpty())
             initFragment();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        if (mPrefetcher != null)
+            mPrefetcher.shutdown();
+    }
+
+    // Once the list has been laid out with a new listing, start prefetching the folders in it, visible ones first
+    private void prefetchVisibleFolders() {
+        final ListView lv = getListView();
+
+        lv.post(new Runnable() {
+            @Override
+            public void run() {
+                final Cursor c = mAdapter == null ? null : mAdapter.getCursor();
+                if (c == null || c.isClosed()) return;
+
+                mPrefetcher.prefetch(c, lv.getFirstVisiblePosition(), lv.getLastVisiblePosition());
+            }
+        });
+    }
+
     // Performs one-time initialization when this Fragment is created
     private void initFragment() {
         setListAdapter(mAdapter);
@@ -121,6 +148,8 @@ public class ServerBrowserFragment extends ListFragment {
 
                 mAdapter.changeCursor(cursor);
                 mActivity.hideProgressSpinner();
+
+                prefetchVisibleFolders();
             }
 
             @Override
@@ -170,6 +199,9 @@ public class ServerBrowserFragment extends ListFragment {
         getLoaderManager().restartLoader(FOLDER_CONTENTS_LOADER, null, new LoaderManager.LoaderCallbacks<Cursor>() {
             @Override
             public Loader<Cursor> onCreateLoader(final int id, final Bundle data) {
+                // Prefetches for the listing being left behind shouldn't hold up this one
+                mPrefetcher.cancel();
+
                 mActivity.showProgressSpinner();
                 return mActivity.getDataSource().getFolderContentsCursorLoader(folder, reloadData);
             }
@@ -183,6 +215,8 @@ public class ServerBrowserFragment extends ListFragment {
 
                 mActivity.hideProgressSpinner();
                 getLoaderManager().destroyLoader(FOLDER_CONTENTS_LOADER);
+
+                prefetchVisibleFolders();
             }
 
             @Override
@@ -192,6 +226,7 @@ public class ServerBrowserFragment extends ListFragment {
 
     // Push a folder onto the stack and display its contents
     private void pushFolder(final Folder folder) {
+        mPrefetcher.onOpen(folder);
         mFolderStack.push(folder);
         loadAndShowFolderContents(folder, true, false);
     }
@@ -202,7 +237,6 @@ public class ServerBrowserFragment extends ListFragment {
         loadAndShowFolderContents(mFolderStack.peek(), false, false);
     }
 
-    // TODO: the delete operation fails
     private void refreshFolder() {
         loadAndShowFolderContents(mFolderStack.peek(), false, true);
     }
@@ -305,7 +339,7 @@ public class ServerBrowserFragment extends ListFragment {
 
     private class FilesystemEntryCursorAdapter extends CursorAdapter implements SectionIndexer {
         private final LayoutInflater mInflater;
-        private final int nameCol, trackNumCol;
+        private final int nameCol, trackNumCol, cachedCol;
         private AlphabetIndexer mIndexer;
 
         private static final String INDEXES = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
@@ -319,6 +353,7 @@ public class ServerBrowserFragment extends ListFragment {
 
             nameCol     = c.getColumnIndex(DatabaseHelper.NAME.name);
             trackNumCol = c.getColumnIndex(DatabaseHelper.TRACK_NUMBER.name);
+            cachedCol   = c.getColumnIndex(DatabaseHelper.CACHED.name);
         }
 
         @Override
@@ -361,6 +396,10 @@ public class ServerBrowserFragment extends ListFragment {
             final String displayName = trackNumber > 0 ? Integer.toString(trackNumber) + ". " + name : name;
 
             tv.setText(displayName);
+
+            // Mark files that have been downloaded, and so are available offline
+            tv.setCompoundDrawablesWithIntrinsicBounds(0, 0,
+                    cursor.getInt(cachedCol) == 1 ? R.drawable.ic_action_download : 0, 0);
         }
 
         @Override
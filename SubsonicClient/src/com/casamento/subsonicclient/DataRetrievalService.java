@@ -25,42 +25,80 @@
 package com.casamento.subsonicclient;
 
 import android.app.IntentService;
+import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.ResultReceiver;
 
+import java.io.File;
+
 abstract class DataRetrievalService extends IntentService {
     DataRetrievalService() {
         super("DataRetrievalService");
     }
 
+    // The on-disk cache of REST responses is shared by every data service
+    private static final String HTTP_CACHE_DIRECTORY = "http";
+    private static final long HTTP_CACHE_SIZE = 10 * 1024 * 1024;
+
+    static void installHttpResponseCache(final Context context) {
+        HttpResponseCache.install(new File(context.getCacheDir(), HTTP_CACHE_DIRECTORY), HTTP_CACHE_SIZE);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        installHttpResponseCache(this);
+    }
+
     static final String IN_RESULT_RECEIVER = "result_receiver";
     static final String IN_ACCESS_INFO = "access_info";
     static final String IN_FOLDER = "folder";
+    static final String IN_IF_MODIFIED_SINCE = "if_modified_since";
+    static final String IN_REPLACE = "replace";
+    static final String IN_BACKGROUND = "background";
 
-    static final String OUT_RESULTS = "results";
     static final String OUT_EXCEPTION = "exception";
+    static final String OUT_BYTES_RECEIVED = "bytes_received";
+    static final String OUT_LAST_MODIFIED = "last_modified";
+
+    // Returned in place of a last-modified time when a folder hasn't changed since the time the caller asked about
+    static final long NOT_MODIFIED = -1;
 
     static final int RESULT_CODE_EXCEPTION = -1;
     static final int RESULT_CODE_OK = RESULT_CODE_EXCEPTION + 1;
 
+    // Retrieved entries are stored in the database as they arrive, rather than being sent back to the caller; the
+    // result only says whether that worked
     @Override
     protected void onHandleIntent(final Intent intent) {
         final Uri uri = intent.getData();
+        final String table = uri.getPathSegments().get(DataSource.URI_SEGMENT_TABLE_NAME);
         final ResultReceiver receiver = intent.getParcelableExtra(IN_RESULT_RECEIVER);
         final DataSource.AccessInformation accessInfo = intent.getParcelableExtra(IN_ACCESS_INFO);
+        final boolean replace = intent.getBooleanExtra(IN_REPLACE, false);
+
+        // Speculative requests (e.g. prefetches) mustn't be mistaken for browsing, which would hold downloads back
+        HttpClientPool.setBackgroundThread(intent.getBooleanExtra(IN_BACKGROUND, false));
 
         final Bundle out = new Bundle();
 
         // Retrieve data from the source
         switch (DataSource.getCommandType(uri)) {
             case TOP_LEVEL_FOLDERS: {
+                final FolderContentsWriter writer =
+                        new FolderContentsWriter(getContentResolver(), table, Folder.ROOT_FOLDER, replace);
+
                 try {
-                    final Folder[] results = retrieveTopLevelFolders(accessInfo);
-                    out.putParcelableArray(OUT_RESULTS, results);
+                    for (final Folder f : retrieveTopLevelFolders(accessInfo))
+                        writer.onEntry(f);
+
+                    writer.finish();
                     receiver.send(RESULT_CODE_OK, out);
                 } catch (final Exception e) {
+                    writer.abort();
                     out.putSerializable(OUT_EXCEPTION, e);
                     receiver.send(RESULT_CODE_EXCEPTION, out);
                 }
@@ -69,11 +107,25 @@ abstract class DataRetrievalService extends IntentService {
             case FOLDER_CONTENTS: {
                 final Folder folder = intent.getParcelableExtra(IN_FOLDER);
 
+                final long ifModifiedSince = intent.getLongExtra(IN_IF_MODIFIED_SINCE, 0);
+                final FolderContentsWriter writer = new FolderContentsWriter(getContentResolver(), table, folder,
+                        replace);
+
                 try {
-                    final FilesystemEntry[] results = retrieveFolderContents(accessInfo, folder);
-                    out.putParcelableArray(OUT_RESULTS, results);
+                    final long bytesBefore = HttpClientPool.getBytesReceivedByThread();
+                    final long lastModified = retrieveFolderContents(accessInfo, folder, ifModifiedSince, writer);
+
+                    // An unmodified folder has no entries; the ones that are already stored are still current
+                    if (lastModified != NOT_MODIFIED)
+                        writer.finish();
+                    else
+                        writer.abort();
+
+                    out.putLong(OUT_LAST_MODIFIED, lastModified);
+                    out.putLong(OUT_BYTES_RECEIVED, HttpClientPool.getBytesReceivedByThread() - bytesBefore);
                     receiver.send(RESULT_CODE_OK, out);
                 } catch (final Exception e) {
+                    writer.abort();
                     out.putSerializable(OUT_EXCEPTION, e);
                     receiver.send(RESULT_CODE_EXCEPTION, out);
                 }
@@ -84,7 +136,25 @@ abstract class DataRetrievalService extends IntentService {
         }
     }
 
+    // Receives filesystem entries one at a time, as they're unmarshalled from the data source
+    interface EntryHandler {
+        void onEntry(FilesystemEntry entry);
+    }
+
     // TODO: throw more specific exceptions
     abstract Folder[] retrieveTopLevelFolders(DataSource.AccessInformation accessInfo) throws Exception;
-    abstract FilesystemEntry[] retrieveFolderContents(DataSource.AccessInformation accessInfo, final Folder f) throws Exception;
+
+    /**
+     * Retrieves the contents of a folder, handing each entry to the handler as soon as it's been read, so that
+     * implementations never need to hold the whole response in memory.
+     * @param accessInfo The data source to retrieve the contents from
+     * @param f The folder to retrieve the contents of
+     * @param ifModifiedSince If nonzero, the data source may skip sending the contents when the folder hasn't changed
+     *                        since this time (as previously returned by this method)
+     * @param handler Receives the entries
+     * @return The time the folder was last modified according to the data source, or 0 if it doesn't say; or
+     *         NOT_MODIFIED if the folder hasn't changed since ifModifiedSince, in which case no entries are handled
+     */
+    abstract long retrieveFolderContents(DataSource.AccessInformation accessInfo, Folder f, long ifModifiedSince,
+            EntryHandler handler) throws Exception;
 }
@@ -24,30 +24,52 @@
 
 package com.casamento.subsonicclient;
 
+import android.app.Service;
 import android.content.*;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.os.ResultReceiver;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.casamento.subsonicclient.DataRetrievalService.*;
 
 class DataSource {
+    private static final String logTag = "DataSource";
+
+    // How long getFolderContents() waits on a retrieval it didn't start itself (e.g. one the data service is doing)
+    private static final long RETRIEVAL_TIMEOUT = 60;
+
     static final int URI_SEGMENT_TABLE_NAME = 0;
 
     private final Context mContext;
 
     private final AccessInformation mAccessInfo;
     private final String mTableName;
-    private final Class mDataServiceClass;
+    private final Class<? extends Service> mDataServiceClass, mLibrarySyncServiceClass;
 
     enum CommandType {
         TOP_LEVEL_FOLDERS("folder_contents", false),
         FOLDER_CONTENTS("folder_contents", true),
         FILESYSTEM_ENTRY("filesystem_entry", true),
         INSERT("insert", false),
-        UPDATE("update", true);
+        UPDATE("update", true),
+        SUBTREE("subtree", true),
+
+        // A folder's contents as they arrive, kept apart from the table until they're all there (see
+        // FolderContentsWriter); the id is the staging id
+        STAGED("staged", true),
+        COMMIT_STAGED("commit_staged", true);
 
         private final String CONTENT_TYPE = "filesystem_entry";
 
@@ -69,11 +91,12 @@ class DataSource {
     }
 
     DataSource(final Context context, final String tableName, final AccessInformation accessInfo,
-            final Class dataServiceClass) {
+            final Class<? extends Service> dataServiceClass, final Class<? extends Service> librarySyncServiceClass) {
         mContext = context;
         mTableName = tableName;
         mAccessInfo = accessInfo;
         mDataServiceClass = dataServiceClass;
+        mLibrarySyncServiceClass = librarySyncServiceClass;
     }
 
     // Build a URI to perform a CRUD operation on the database table
@@ -113,10 +136,30 @@ class DataSource {
         return mAccessInfo;
     }
 
-    // TODO: this fails
-    private int deleteFolderContents(final Folder f) {
+    String getTableName() {
+        return mTableName;
+    }
+
+    // Copy the whole library into the database in the background; resumes an interrupted sync unless restart is set
+    void startLibrarySync(final boolean restart) {
+        final Intent syncRequest = new Intent(mContext, mLibrarySyncServiceClass);
+        syncRequest.putExtra(LibrarySyncService.IN_ACCESS_INFO, mAccessInfo);
+        syncRequest.putExtra(LibrarySyncService.IN_TABLE, mTableName);
+        syncRequest.putExtra(LibrarySyncService.IN_RESTART, restart);
+        mContext.startService(syncRequest);
+    }
+
+    // Whether any of a folder's contents are in the database already
+    boolean hasFolderContents(final Folder f) {
         final Uri uri = buildUri(mTableName, CommandType.FOLDER_CONTENTS, f);
-        return mContext.getContentResolver().delete(uri, null, null);
+        final Cursor c = mContext.getContentResolver().query(uri, new String[] { DatabaseHelper.ID.name }, null, null,
+                null);
+
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
     }
 
     private Cursor getFolderContentsCursor(final Folder f) {
@@ -124,20 +167,238 @@ class DataSource {
         return mContext.getContentResolver().query(uri, DatabaseHelper.getColumnNames(), null, null, null);
     }
 
-    // Inserts FilesystemEntries into the database table
-    private void insertFilesystemEntries(final FilesystemEntry... entries) {
-        final Uri uri = buildUri(mTableName, CommandType.INSERT);
+    /**
+     * Gets a folder's contents from the database, first retrieving them from the data source if they aren't stored yet.
+     * This blocks until they're available, so it mustn't be called on the main thread.
+     * @param f The folder to get the contents of
+     * @return The folder's contents
+     * @throws Exception If they had to be retrieved, and that failed (or didn't finish in time)
+     */
+    List<FilesystemEntry> getFolderContents(final Folder f) throws Exception {
+        final List<FilesystemEntry> stored = readFolderContents(f);
+        if (!stored.isEmpty()) return stored;
+
+        final CountDownLatch retrieved = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+
+        final FolderContentsCallback callback = new FolderContentsCallback() {
+            @Override
+            public void onFolderContentsStored(final Folder folder, final long bytesReceived) {
+                retrieved.countDown();
+            }
 
-        final ContentResolver cr = mContext.getContentResolver();
-        for (final FilesystemEntry entry : entries)
-            cr.insert(uri, entry.getContentValues());
+            @Override
+            public void onError(final Folder folder, final Exception e) {
+                error[0] = e;
+                retrieved.countDown();
+            }
+        };
+
+        // Retrieve the folder on this thread, rather than queueing up behind everything else the data service has to
+        // do, unless someone else is already retrieving it
+        if (Folder.ROOT_FOLDER.equals(f))
+            retrieveFolderContents(f, callback);
+        else if (!joinInFlightRequest(getRequestKey(f), callback))
+            retrieveFolderContentsDirectly(f);
+
+        // The data service may die without ever sending a result, so don't wait on it forever
+        if (!retrieved.await(RETRIEVAL_TIMEOUT, TimeUnit.SECONDS))
+            throw new TimeoutException("Timed out retrieving " + getRequestKey(f));
+        if (error[0] != null) throw error[0];
+
+        return readFolderContents(f);
     }
 
-    Loader<Cursor> getFolderContentsCursorLoader(final Folder folder, final boolean refresh) {
-        if (refresh)
-            deleteFolderContents(folder);
+    private List<FilesystemEntry> readFolderContents(final Folder f) {
+        final List<FilesystemEntry> entries = new ArrayList<FilesystemEntry>();
+        final Cursor c = getFolderContentsCursor(f);
+
+        try {
+            while (c.moveToNext())
+                entries.add(FilesystemEntry.getInstance(c));
+        } finally {
+            c.close();
+        }
+
+        return entries;
+    }
+
+    // The last-modified time the data source reported for each folder the last time its contents were stored, so that a
+    // refresh can ask for them only if they've changed since
+    private SharedPreferences getLastModifiedPreferences() {
+        return mContext.getSharedPreferences("last_modified_" + mTableName, Context.MODE_PRIVATE);
+    }
+
+    private long getLastModified(final Folder f) {
+        return getLastModifiedPreferences().getLong(f.id.toString(), 0);
+    }
+
+    private void setLastModified(final Folder f, final long lastModified) {
+        getLastModifiedPreferences().edit().putLong(f.id.toString(), lastModified).apply();
+    }
+
+    // Notified once a folder's contents have been retrieved from the data source and stored in the database
+    interface FolderContentsCallback {
+        /**
+         * @param folder The folder whose contents were stored
+         * @param bytesReceived How many bytes were transferred over the network to retrieve them
+         */
+        void onFolderContentsStored(Folder folder, long bytesReceived);
+        void onError(Folder folder, Exception e);
+    }
+
+    // Retrievals that are currently in progress, keyed by table and folder, along with everyone waiting on each of them;
+    // guarded by itself
+    private static final Map<String, List<FolderContentsCallback>> mInFlightRequests =
+            new HashMap<String, List<FolderContentsCallback>>();
+
+    private static final AtomicLong mCoalescedRequests = new AtomicLong();
+
+    // The number of folder retrievals that were avoided by joining one that was already in progress
+    static long getCoalescedRequestCount() {
+        return mCoalescedRequests.get();
+    }
+
+    private String getRequestKey(final Folder folder) {
+        return mTableName + "/" + folder.id;
+    }
 
+    // Adds a callback to a retrieval that's already in progress, and returns true; or, if there isn't one, registers a
+    // new retrieval with just this callback, and returns false, in which case the caller has to carry it out
+    private static boolean joinInFlightRequest(final String key, final FolderContentsCallback callback) {
+        synchronized (mInFlightRequests) {
+            final List<FolderContentsCallback> waiting = mInFlightRequests.get(key);
+
+            if (waiting != null) {
+                waiting.add(callback);
+                Log.d(logTag, "Joined request in progress for " + key + " (" + mCoalescedRequests.incrementAndGet() +
+                        " coalesced so far)");
+                return true;
+            }
+
+            final List<FolderContentsCallback> callbacks = new ArrayList<FolderContentsCallback>();
+            callbacks.add(callback);
+            mInFlightRequests.put(key, callbacks);
+            return false;
+        }
+    }
+
+    // Notifies everyone waiting on a retrieval that it's finished; called only once the contents are in the database,
+    // so that nobody who joins before then misses them
+    private static void completeInFlightRequest(final String key, final Folder folder, final long bytesReceived,
+            final Exception error) {
+        final List<FolderContentsCallback> callbacks;
+        synchronized (mInFlightRequests) {
+            callbacks = mInFlightRequests.remove(key);
+        }
+
+        for (final FolderContentsCallback c : callbacks) {
+            if (error == null)
+                c.onFolderContentsStored(folder, bytesReceived);
+            else
+                c.onError(folder, error);
+        }
+    }
+
+    // Retrieves a folder's contents from the data source and stores them on the calling thread, for callers that are
+    // already in the background and would otherwise wait on the data service; the retrieval must have been registered
+    // with joinInFlightRequest()
+    private void retrieveFolderContentsDirectly(final Folder folder) {
+        final String key = getRequestKey(folder);
+        final FolderContentsWriter writer =
+                new FolderContentsWriter(mContext.getContentResolver(), mTableName, folder, false);
+        final long bytesBefore = HttpClientPool.getBytesReceivedByThread();
+        Exception error = null;
+
+        try {
+            final long lastModified = mAccessInfo.retrieveFolderContents(folder, 0, writer);
+            writer.finish();
+
+            if (lastModified > 0)
+                setLastModified(folder, lastModified);
+        } catch (final Exception e) {
+            error = e;
+            Log.e(logTag, "Error retrieving contents of " + key, e);
+            writer.abort();
+        } finally {
+            completeInFlightRequest(key, folder, HttpClientPool.getBytesReceivedByThread() - bytesBefore, error);
+        }
+    }
+
+    void retrieveFolderContents(final Folder folder, final FolderContentsCallback callback) {
+        retrieveFolderContents(folder, false, false, callback);
+    }
+
+    void retrieveFolderContents(final Folder folder, final boolean refresh, final FolderContentsCallback callback) {
+        retrieveFolderContents(folder, refresh, false, callback);
+    }
+
+    // Retrieves a folder's contents speculatively, as background traffic that downloads don't make way for
+    void prefetchFolderContents(final Folder folder, final FolderContentsCallback callback) {
+        retrieveFolderContents(folder, false, true, callback);
+    }
+
+    /**
+     * Retrieves the contents of a folder from the data source and stores them in the database. If the same folder is
+     * already being retrieved for this table, no new request is made; the callback is notified when that one finishes.
+     * @param folder The folder to retrieve the contents of
+     * @param refresh If true, the folder's stored contents are replaced, but only if the data source reports that
+     *                they've changed since they were stored
+     * @param background Whether the retrieval is background traffic, rather than something the user is waiting on
+     * @param callback Notified (on an arbitrary thread) once the contents are in the database, or have failed to load
+     */
+    private void retrieveFolderContents(final Folder folder, final boolean refresh, final boolean background,
+            final FolderContentsCallback callback) {
+        final String key = getRequestKey(folder);
+        if (joinInFlightRequest(key, callback)) return;
+
+        // Put out an Intent to tell the IntentService to retrieve the data from the server
+        final Intent folderContentsRequest = new Intent(mContext, mDataServiceClass);
+        folderContentsRequest.setData(buildUri(mTableName, CommandType.FOLDER_CONTENTS, folder));
+        folderContentsRequest.putExtra(IN_ACCESS_INFO, mAccessInfo);
+        folderContentsRequest.putExtra(IN_FOLDER, folder);
+
+        if (refresh) {
+            folderContentsRequest.putExtra(IN_IF_MODIFIED_SINCE, getLastModified(folder));
+            folderContentsRequest.putExtra(IN_REPLACE, true);
+        }
+
+        folderContentsRequest.putExtra(IN_BACKGROUND, background);
+
+        // Add the callback for when the data is finished being retrieved
+        folderContentsRequest.putExtra(IN_RESULT_RECEIVER, new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(final int resultCode, final Bundle data) {
+                Exception error = null;
+                long bytesReceived = 0;
+
+                if (resultCode == RESULT_CODE_OK) {
+                    bytesReceived = data.getLong(OUT_BYTES_RECEIVED);
+                    final long lastModified = data.getLong(OUT_LAST_MODIFIED);
+
+                    // The service has already stored the new contents, once for everyone who's waiting on them
+                    if (lastModified == NOT_MODIFIED)
+                        Log.d(logTag, key + " is unchanged; kept stored contents (" + bytesReceived + " bytes)");
+                    else if (lastModified > 0)
+                        setLastModified(folder, lastModified);
+                } else {
+                    error = (Exception) data.getSerializable(OUT_EXCEPTION);
+                    Log.e(logTag, "Error retrieving contents of " + key, error);
+                }
+
+                completeInFlightRequest(key, folder, bytesReceived, error);
+            }
+        });
+
+        // Send the Intent on its way
+        mContext.startService(folderContentsRequest);
+    }
+
+    Loader<Cursor> getFolderContentsCursorLoader(final Folder folder, final boolean refresh) {
         return new AsyncTaskLoader<Cursor>(mContext) {
+            // A refresh checks with the data source once, even if the contents are already stored
+            private volatile boolean mRefreshPending = refresh;
+
             @Override
             protected void onStartLoading() {
                 super.onStartLoading();
@@ -157,36 +418,32 @@ class DataSource {
             // N.B. The return value of this method gets immediately handed off to deliverResult()
             @Override
             public Cursor loadInBackground() {
+                final boolean refreshing = mRefreshPending;
+                mRefreshPending = false;
+
                 // If the data is already in the database, return the Cursor immediately
-                final Cursor c = getFolderContentsCursor(folder);
-                if (c.getCount() > 0)
-                    return c;
-
-                // Otherwise, put out an Intent to tell the IntentService to retrieve the data from the server
-                final Intent folderContentsRequest = new Intent(mContext, mDataServiceClass);
-                folderContentsRequest.setData(buildUri(mTableName, CommandType.FOLDER_CONTENTS, folder));
-                folderContentsRequest.putExtra(IN_ACCESS_INFO, mAccessInfo);
-                folderContentsRequest.putExtra(IN_FOLDER, folder);
-
-                // Add the callback for when the data is finished being retrieved
-                folderContentsRequest.putExtra(IN_RESULT_RECEIVER, new ResultReceiver(null) {
+                if (!refreshing) {
+                    final Cursor c = getFolderContentsCursor(folder);
+                    if (c.getCount() > 0)
+                        return c;
+
+                    c.close();
+                }
+
+                // Otherwise, retrieve it (or wait for a retrieval that's already underway)
+                retrieveFolderContents(folder, refreshing, new FolderContentsCallback() {
                     @Override
-                    protected void onReceiveResult(final int resultCode, final Bundle data) {
+                    public void onFolderContentsStored(final Folder f, final long bytesReceived) {
+                        // Restart loadInBackground() now that the data is in the database
+                        forceLoad();
+                    }
+
+                    @Override
+                    public void onError(final Folder f, final Exception e) {
                         // TODO: error handling
-                        if (resultCode == RESULT_CODE_OK) {
-                            // Put the new data into the database
-                            final FilesystemEntry[] contents = (FilesystemEntry[]) data.getParcelableArray(OUT_RESULTS);
-                            insertFilesystemEntries(contents);
-
-                            // Restart loadInBackground() now that the data is in the database
-                            forceLoad();
-                        }
                     }
                 });
 
-                // Send the Intent on its way
-                mContext.startService(folderContentsRequest);
-
                 // A null result is ignored in deliverResult(); when the IntentService finishes processing,
                 // loadInBackground() will be restarted and deliver the cursor in the
                 return null;
@@ -199,6 +456,11 @@ class DataSource {
         abstract String getDownloadUrl(MediaFile mf, boolean transcoded);
         abstract String getUsername();
         abstract String getPassword();
+
+        // Retrieves a folder's contents on the calling thread, without going through the data service; see
+        // DataRetrievalService.retrieveFolderContents()
+        abstract long retrieveFolderContents(Folder f, long ifModifiedSince, DataRetrievalService.EntryHandler handler)
+                throws Exception;
     }
 
     static final String AUTHORITY = "com.casamento.subsonicclient.FilesystemEntryProvider";
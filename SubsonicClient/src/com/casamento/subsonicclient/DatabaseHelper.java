@@ -28,11 +28,16 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
 
 class DatabaseHelper extends SQLiteOpenHelper {
+    private static final String logTag = "DatabaseHelper";
+
     static final String DATABASE_NAME = "filesystem_entries.db";
     static final int DATABASE_VERSION = 2;
 
@@ -61,7 +66,12 @@ class DatabaseHelper extends SQLiteOpenHelper {
             SIZE = new Column("size", "integer"),
 
             // other stuff
-            CACHED = new Column("cached", "integer");
+            CACHED = new Column("cached", "integer"),
+            SORT_KEY = new Column("sort_key", "text"),
+
+            // The ids of the folders above an entry, from the top level down, as "/a/b/c/" ("/" for top-level folders);
+            // an entry's whole subtree is then a range of this column (see FilesystemEntryProvider)
+            ANCESTRY = new Column("ancestry", "text");
 
     static final Column[] COLUMNS = {
             ID,
@@ -81,9 +91,23 @@ class DatabaseHelper extends SQLiteOpenHelper {
             BIT_RATE,
             YEAR,
             SIZE,
-            CACHED
+            CACHED,
+            SORT_KEY,
+            ANCESTRY
+    };
+
+    // Every table's indexes. Folder contents are looked up by parent, and top-level folders by flag; both are kept in
+    // sort key order, so listings come out of the index already sorted. Listings read every column, so no index could
+    // cover them; each one holds just what's needed to find and order the rows, to keep upserts cheap.
+    static final Index[] INDEXES = {
+            new Index("parent_folder_sort_key", PARENT_FOLDER, SORT_KEY),
+            new Index("is_top_level_sorted", IS_TOP_LEVEL, SORT_KEY),
+            new Index("ancestry", ANCESTRY)
     };
 
+    // Indexes that have been superseded by the ones above, and are dropped wherever they're found
+    static final String[] OBSOLETE_INDEXES = { "parent_folder", "is_top_level", "parent_folder_sorted" };
+
     static String[] getColumnNames() {
         final int columnCount = COLUMNS.length;
         final String[] columnNames = new String[columnCount];
@@ -108,17 +132,82 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return tables;
     }
 
+    // Pages of the connection's page cache, which bulk inserts' index updates go through (SQLite's default is 2000)
+    private static final int CACHE_SIZE = 4000;
+
+    // The log is checkpointed this long after the last write, off the writing thread...
+    private static final long CHECKPOINT_DELAY_MS = 2000;
+
+    // ...and SQLite only checkpoints on its own, on whichever thread commits, if the log grows past this many pages
+    private static final int AUTOCHECKPOINT_PAGES = 4000;
+
     private final Context mContext;
+    private final Handler mCheckpointHandler;
+
+    private final Runnable mCheckpoint = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                // A passive checkpoint: it copies what it can without waiting on readers or writers
+                pragma(getWritableDatabase(), "pragma wal_checkpoint");
+            } catch (final Exception e) {
+                Log.w(logTag, "Checkpoint failed", e);
+            }
+        }
+    };
 
     DatabaseHelper(final Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
 
         mContext = context;
+
+        final HandlerThread checkpointThread = new HandlerThread("DatabaseCheckpoint",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        checkpointThread.start();
+        mCheckpointHandler = new Handler(checkpointThread.getLooper());
+    }
+
+    /**
+     * Checkpoints the write-ahead log in the background once writes have settled down. Every write calls this, and
+     * each call restarts the delay, so a burst of writes is checkpointed once.
+     */
+    void scheduleCheckpoint() {
+        mCheckpointHandler.removeCallbacks(mCheckpoint);
+        mCheckpointHandler.postDelayed(mCheckpoint, CHECKPOINT_DELAY_MS);
+    }
+
+    // Runs a pragma, whether or not it returns a row (execSQL refuses the ones that do)
+    private static void pragma(final SQLiteDatabase db, final String sql) {
+        final Cursor c = db.rawQuery(sql, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
     }
 
     @Override
     public void onCreate(final SQLiteDatabase db) {}
 
+    // With write-ahead logging, readers see the last commit instead of waiting out a write, so browsing isn't blocked
+    // by incoming entries, and a commit only appends to the log. NORMAL sync is safe in this mode: the last commits
+    // can be lost on power failure, but the database can't be corrupted, and it's all re-fetchable from the server.
+    @Override
+    public void onOpen(final SQLiteDatabase db) {
+        super.onOpen(db);
+
+        if (db.isReadOnly()) return;
+
+        if (!db.enableWriteAheadLogging()) {
+            Log.w(logTag, "Couldn't enable write-ahead logging for " + db.getPath());
+            return;
+        }
+
+        pragma(db, "pragma synchronous = normal");
+        pragma(db, "pragma cache_size = " + CACHE_SIZE);
+        pragma(db, "pragma wal_autocheckpoint = " + AUTOCHECKPOINT_PAGES);
+    }
+
     @Override
     public void onDowngrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
         mContext.deleteDatabase(DATABASE_NAME);
@@ -141,4 +230,25 @@ class DatabaseHelper extends SQLiteOpenHelper {
             type = theType;
         }
     }
+
+    static class Index {
+        final String name;
+        final Column[] columns;
+        Index(final String theName, final Column... theColumns) {
+            name = theName;
+            columns = theColumns;
+        }
+
+        String getCreateStatement(final String table) {
+            final StringBuilder sql = new StringBuilder("create index if not exists ")
+                    .append(table).append('_').append(name).append(" on ").append(table).append('(');
+
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) sql.append(',');
+                sql.append(columns[i].name);
+            }
+
+            return sql.append(')').toString();
+        }
+    }
 }
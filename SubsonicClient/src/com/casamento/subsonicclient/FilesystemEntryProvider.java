@@ -25,17 +25,61 @@
 package com.casamento.subsonicclient;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class FilesystemEntryProvider extends ContentProvider {
     private DatabaseHelper mDatabaseHelper;
 
-    private List<String> mTables;
+    // The tables that are known to exist with all of their indexes; guarded by itself
+    private final Set<String> mTables = new HashSet<String>();
+
+    // The values that a COMMIT_STAGED update takes: the folder the staged entries are the contents of (absent for the
+    // root folder), and whether its stored contents are to be replaced
+    static final String STAGED_FOLDER = "folder", STAGED_REPLACE = "replace";
+
+    private static final String STAGING_ID = "staging_id";
+
+    private static String getStagingTable(final String table) {
+        return table + "_staging";
+    }
+
+    // Staged entries are kept as they arrived, untyped, and only prepared when they're committed. Nothing staged
+    // outlives the process that staged it, so whatever's left over from the last one is thrown away.
+    private static void createStagingTable(final SQLiteDatabase db, final String table) {
+        final String stagingTable = getStagingTable(table);
+        final StringBuilder sql = new StringBuilder("create table ").append(stagingTable).append('(')
+                .append(STAGING_ID).append(" integer not null");
+
+        for (final DatabaseHelper.Column column : DatabaseHelper.COLUMNS)
+            sql.append(',').append(column.name);
+
+        db.beginTransaction();
+        try {
+            db.execSQL("drop table if exists " + stagingTable);
+            db.execSQL(sql.append(')').toString());
+            db.execSQL("create index " + stagingTable + "_" + STAGING_ID + " on " + stagingTable + "(" + STAGING_ID +
+                    ")");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
     private void createTable(final SQLiteDatabase db, final String table) {
         String createCommand = "create table if not exists " + table + "(";
@@ -47,24 +91,285 @@ public class FilesystemEntryProvider extends ContentProvider {
         createCommand = createCommand.substring(0, createCommand.length()-1) + ");";
 
         db.execSQL(createCommand);
+        createStagingTable(db, table);
+
+        // Tables created by older versions are brought up to date the first time they're used
+        db.beginTransaction();
+        try {
+            addMissingColumns(db, table);
+
+            for (final String index : DatabaseHelper.OBSOLETE_INDEXES)
+                db.execSQL("drop index if exists " + table + "_" + index);
+
+            for (final DatabaseHelper.Index index : DatabaseHelper.INDEXES)
+                db.execSQL(index.getCreateStatement(table));
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void addMissingColumns(final SQLiteDatabase db, final String table) {
+        final Set<String> existing = new HashSet<String>();
+        final Cursor c = db.rawQuery("pragma table_info(" + table + ")", null);
+        try {
+            final int nameColumn = c.getColumnIndex("name");
+            while (c.moveToNext())
+                existing.add(c.getString(nameColumn));
+        } finally {
+            c.close();
+        }
+
+        for (final DatabaseHelper.Column column : DatabaseHelper.COLUMNS) {
+            if (!existing.contains(column.name))
+                db.execSQL("alter table " + table + " add column " + column.name + " " + column.type);
+        }
+
+        if (!existing.contains(DatabaseHelper.SORT_KEY.name))
+            fillSortKeys(db, table);
+
+        if (!existing.contains(DatabaseHelper.ANCESTRY.name))
+            fillAncestries(db, table);
+    }
+
+    // Works out the ancestries of entries that were stored before there were any
+    private static void fillAncestries(final SQLiteDatabase db, final String table) {
+        final Map<Integer, Integer> parents = new HashMap<Integer, Integer>();
+        final Set<Integer> topLevel = new HashSet<Integer>();
+
+        final Cursor c = db.query(table, new String[] {
+                DatabaseHelper.ID.name, DatabaseHelper.PARENT_FOLDER.name, DatabaseHelper.IS_TOP_LEVEL.name
+        }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                if (c.getInt(2) == 1 || c.isNull(1))
+                    topLevel.add(c.getInt(0));
+                else
+                    parents.put(c.getInt(0), c.getInt(1));
+            }
+        } finally {
+            c.close();
+        }
+
+        final Map<Integer, String> ancestries = new HashMap<Integer, String>();
+        for (final Integer id : topLevel)
+            ancestries.put(id, ROOT_ANCESTRY);
+
+        final SQLiteStatement update = db.compileStatement("update " + table + " set " +
+                DatabaseHelper.ANCESTRY.name + "=? where " + DatabaseHelper.ID.name + "=?");
+        try {
+            for (final Integer id : topLevel) {
+                update.bindString(1, ROOT_ANCESTRY);
+                update.bindLong(2, id);
+                update.execute();
+            }
+
+            for (final Integer id : parents.keySet()) {
+                update.bindString(1, computeAncestry(id, parents, ancestries));
+                update.bindLong(2, id);
+                update.execute();
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    // Works out a stored entry's ancestry by walking up to the first folder whose ancestry is known (or that isn't
+    // stored, and so is treated as top-level), remembering the ancestry of every folder on the way down again
+    private static String computeAncestry(final Integer id, final Map<Integer, Integer> parents,
+            final Map<Integer, String> ancestries) {
+        final List<Integer> chain = new ArrayList<Integer>();
+        Integer current = id;
+        String ancestry;
+
+        while ((ancestry = ancestries.get(current)) == null) {
+            final Integer parent = parents.get(current);
+
+            // A cycle shouldn't be possible, but don't loop forever if there is one
+            if (parent == null || chain.size() > parents.size()) {
+                ancestry = ROOT_ANCESTRY;
+                break;
+            }
+
+            chain.add(current);
+            current = parent;
+        }
+
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            ancestry += current + "/";
+            current = chain.get(i);
+            ancestries.put(current, ancestry);
+        }
+
+        return ancestry;
+    }
+
+    private static final String ROOT_ANCESTRY = "/";
+
+    /**
+     * Works out an entry's ancestry from its parent's, which is looked up once per parent and remembered.
+     * @param ancestries The ancestries of the folders seen so far, by id
+     */
+    private static String getAncestry(final SQLiteDatabase db, final String table, final ContentValues values,
+            final Map<Integer, String> ancestries) {
+        final Integer parentId = values.getAsInteger(DatabaseHelper.PARENT_FOLDER.name);
+        final Integer isTopLevel = values.getAsInteger(DatabaseHelper.IS_TOP_LEVEL.name);
+
+        if (parentId == null || (isTopLevel != null && isTopLevel == 1))
+            return ROOT_ANCESTRY;
+
+        String parentAncestry = ancestries.get(parentId);
+        if (parentAncestry == null) {
+            parentAncestry = getStoredAncestry(db, table, parentId);
+            ancestries.put(parentId, parentAncestry);
+        }
+
+        return parentAncestry + parentId + "/";
+    }
+
+    // A stored folder's ancestry; a folder that isn't stored is treated as if it were top-level, so its children are
+    // stored as orphans ("/parent/") until it arrives (see adoptOrphans())
+    private static String getStoredAncestry(final SQLiteDatabase db, final String table, final int id) {
+        final Cursor c = db.query(table, new String[] { DatabaseHelper.ANCESTRY.name },
+                DatabaseHelper.ID.name + "=" + id, null, null, null, null);
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getString(0) : ROOT_ANCESTRY;
+        } finally {
+            c.close();
+        }
+    }
+
+    // The range of ancestries that every entry below a folder, and nothing else, falls in: they all start with the
+    // folder's own ancestry followed by its id, and '0' is the character after '/'
+    private static String[] getSubtreeRange(final String ancestry, final int folderId) {
+        final String prefix = ancestry + folderId + "/";
+        return new String[] { prefix, prefix.substring(0, prefix.length() - 1) + "0" };
+    }
+
+    private static final String SUBTREE_SELECTION =
+            DatabaseHelper.ANCESTRY.name + ">=? and " + DatabaseHelper.ANCESTRY.name + "<?";
+
+    // Prepares an entry for storing: fills in its ancestry and cached flag, and if it's a folder, remembers its
+    // ancestry for its children and gives it any of them that were stored before it was
+    private void prepareEntry(final SQLiteDatabase db, final String table, final ContentValues values,
+            final Map<Integer, String> ancestries) {
+        final String ancestry = getAncestry(db, table, values, ancestries);
+        values.put(DatabaseHelper.ANCESTRY.name, ancestry);
+        setCached(table, values);
+
+        final Integer isFolder = values.getAsInteger(DatabaseHelper.IS_FOLDER.name);
+        final Integer id = values.getAsInteger(DatabaseHelper.ID.name);
+        if (isFolder == null || isFolder == 0 || id == null) return;
+
+        ancestries.put(id, ancestry);
+        if (!ROOT_ANCESTRY.equals(ancestry))
+            adoptOrphans(db, table, id, ancestry);
+    }
+
+    // Gives entries that were stored below a folder before the folder itself was (and so have ancestries starting at
+    // it) the folder's full ancestry
+    private static void adoptOrphans(final SQLiteDatabase db, final String table, final int folderId,
+            final String ancestry) {
+        final String[] range = getSubtreeRange(ROOT_ANCESTRY, folderId);
+        final String prefix = ancestry.substring(0, ancestry.length() - 1);
+
+        db.execSQL("update " + table + " set " + DatabaseHelper.ANCESTRY.name + "=? || " +
+                DatabaseHelper.ANCESTRY.name + " where " + SUBTREE_SELECTION, new Object[] { prefix, range[0], range[1] });
+    }
+
+    // Works out the sort keys of entries that were stored before there were any
+    private static void fillSortKeys(final SQLiteDatabase db, final String table) {
+        final Cursor c = db.query(table, new String[] {
+                DatabaseHelper.ID.name, DatabaseHelper.NAME.name, DatabaseHelper.TRACK_NUMBER.name
+        }, null, null, null, null, null);
+        final SQLiteStatement update = db.compileStatement("update " + table + " set " +
+                DatabaseHelper.SORT_KEY.name + "=? where " + DatabaseHelper.ID.name + "=?");
+
+        try {
+            while (c.moveToNext()) {
+                update.bindString(1, FilesystemEntry.getSortKey(c.getString(1), c.isNull(2) ? null : c.getInt(2)));
+                update.bindLong(2, c.getLong(0));
+                update.execute();
+            }
+        } finally {
+            update.close();
+            c.close();
+        }
     }
 
     private void createTableIfNecessary(final SQLiteDatabase db, final String table) {
-        if (!mTables.contains(table)) {
-            createTable(db, table);
-            mTables.add(table);
+        synchronized (mTables) {
+            if (!mTables.contains(table)) {
+                createTable(db, table);
+                mTables.add(table);
+            }
         }
     }
 
+    // An upsert of every column, in the order of DatabaseHelper.COLUMNS
+    private static String getInsertStatement(final String table) {
+        return getInsertStatement(table, "");
+    }
+
+    // An insert of the staging id and then every column, in the order of DatabaseHelper.COLUMNS
+    private static String getStagingInsertStatement(final String table) {
+        return getInsertStatement(getStagingTable(table), STAGING_ID);
+    }
+
+    private static String getInsertStatement(final String table, final String firstColumn) {
+        final StringBuilder sql = new StringBuilder("insert or replace into ").append(table).append("(")
+                .append(firstColumn);
+        final StringBuilder parameters = new StringBuilder(firstColumn.length() > 0 ? "?" : "");
+
+        for (final DatabaseHelper.Column column : DatabaseHelper.COLUMNS) {
+            if (parameters.length() > 0) {
+                sql.append(',');
+                parameters.append(',');
+            }
+
+            sql.append(column.name);
+            parameters.append('?');
+        }
+
+        return sql.append(") values (").append(parameters).append(')').toString();
+    }
+
+    private static void bind(final SQLiteStatement statement, final int index, final Object value) {
+        if (value == null)
+            statement.bindNull(index);
+        else if (value instanceof String)
+            statement.bindString(index, (String) value);
+        else if (value instanceof Double || value instanceof Float)
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        else if (value instanceof Number)
+            statement.bindLong(index, ((Number) value).longValue());
+        else if (value instanceof Boolean)
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        else if (value instanceof byte[])
+            statement.bindBlob(index, (byte[]) value);
+        else
+            statement.bindString(index, value.toString());
+    }
+
+    // Media files' CACHED column comes from the local file index rather than the data source, so fill it in on the way in
+    private void setCached(final String table, final ContentValues values) {
+        final Integer isFolder = values.getAsInteger(DatabaseHelper.IS_FOLDER.name);
+        final Integer id = values.getAsInteger(DatabaseHelper.ID.name);
+
+        if (isFolder != null && isFolder == 0 && id != null)
+            values.put(DatabaseHelper.CACHED.name, LocalFileIndex.get(getContext()).isCached(table, id) ? 1 : 0);
+    }
+
     @Override
     public boolean onCreate() {
         mDatabaseHelper = new DatabaseHelper(getContext());
-        mTables = mDatabaseHelper.getTables();
         return true;
     }
 
-    private final String ordering = "coalesce(" + DatabaseHelper.TRACK_NUMBER.name + "," + DatabaseHelper.NAME.name
-            + ") collate nocase";
+    // Sort keys are worked out when entries are stored (see FilesystemEntry.getSortKey()), and indexed along with the
+    // columns that listings are looked up by, so listings are read in order rather than sorted
+    private final String ordering = DatabaseHelper.SORT_KEY.name;
 
     @Override
     public Cursor query(final Uri uri, final String[] columns, final String _ignoredSelection,
@@ -92,6 +397,13 @@ public class FilesystemEntryProvider extends ContentProvider {
                 return db.query(table, columns, selection, null, null, null, ordering);
             }
 
+            // Everything below a folder, however deep, in one indexed range scan
+            case SUBTREE: {
+                final int id = Integer.parseInt(uri.getLastPathSegment());
+                final String[] range = getSubtreeRange(getStoredAncestry(db, table, id), id);
+                return db.query(table, columns, SUBTREE_SELECTION, range, null, null, DatabaseHelper.ANCESTRY.name);
+            }
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -108,11 +420,21 @@ public class FilesystemEntryProvider extends ContentProvider {
         final String table = uri.getPathSegments().get(DataSource.URI_SEGMENT_TABLE_NAME);
 
         createTableIfNecessary(db, table);
+        mDatabaseHelper.scheduleCheckpoint();
 
         switch (DataSource.getCommandType(uri)) {
             case INSERT: {
-                final long row = db.insertOrThrow(table, null, values);
-                return DataSource.buildUri(table, DataSource.CommandType.FILESYSTEM_ENTRY, row);
+                db.beginTransaction();
+                try {
+                    prepareEntry(db, table, values, new HashMap<Integer, String>());
+                    // An upsert, like bulkInsert(), so that a batch with an entry that's already stored doesn't fail
+                    final long row = db.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    if (row == -1) throw new SQLException("Couldn't store entry in " + uri);
+                    db.setTransactionSuccessful();
+                    return DataSource.buildUri(table, DataSource.CommandType.FILESYSTEM_ENTRY, row);
+                } finally {
+                    db.endTransaction();
+                }
             }
 
             default:
@@ -120,48 +442,129 @@ public class FilesystemEntryProvider extends ContentProvider {
         }
     }
 
-    private static int deleteTopLevelFolders(final SQLiteDatabase db, final String table) {
-        // First delete top-level folders, to get a valid count...
-        final int topLevelFolderCount = db.delete(table, DatabaseHelper.IS_TOP_LEVEL.name + "=1", null);
+    // Binds every column of an entry, in the order of DatabaseHelper.COLUMNS, starting at the given index
+    private static void bindColumns(final SQLiteStatement statement, final int firstIndex, final ContentValues values) {
+        final DatabaseHelper.Column[] columns = DatabaseHelper.COLUMNS;
+        for (int i = 0; i < columns.length; i++)
+            bind(statement, firstIndex + i, values.get(columns[i].name));
+    }
 
-        // then delete everything else, since everything is a child of a top-level folder
-        db.delete(table, null, null);
+    // Inserts many entries in one transaction through a single compiled statement, replacing any that are already
+    // stored; entries that are staged are just set aside, as they are, until they're committed
+    @Override
+    public int bulkInsert(final Uri uri, final ContentValues[] values) {
+        final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        final String table = uri.getPathSegments().get(DataSource.URI_SEGMENT_TABLE_NAME);
 
-        return topLevelFolderCount;
+        createTableIfNecessary(db, table);
+        mDatabaseHelper.scheduleCheckpoint();
+
+        switch (DataSource.getCommandType(uri)) {
+            case INSERT: {
+                final Map<Integer, String> ancestries = new HashMap<Integer, String>();
+
+                db.beginTransaction();
+                final SQLiteStatement insert = db.compileStatement(getInsertStatement(table));
+                try {
+                    for (final ContentValues cv : values) {
+                        prepareEntry(db, table, cv, ancestries);
+                        bindColumns(insert, 1, cv);
+                        insert.executeInsert();
+                    }
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    insert.close();
+                    db.endTransaction();
+                }
+
+                return values.length;
+            }
+
+            case STAGED: {
+                final long stagingId = Long.parseLong(uri.getLastPathSegment());
+
+                db.beginTransaction();
+                final SQLiteStatement insert = db.compileStatement(getStagingInsertStatement(table));
+                try {
+                    for (final ContentValues cv : values) {
+                        insert.bindLong(1, stagingId);
+                        bindColumns(insert, 2, cv);
+                        insert.executeInsert();
+                    }
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    insert.close();
+                    db.endTransaction();
+                }
+
+                return values.length;
+            }
+
+            default:
+                throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
     }
 
     /**
-     * Recursively deletes the contents of a folder from the given database/table
-     * @param db The database that contains the table
-     * @param table The table that contains the folder
-     * @param folder The folder to delete
-     * @return The number of immediate children that the deleted folder contained
+     * Moves a folder's staged entries into the table, in the order they arrived, and if the folder's stored contents
+     * are being replaced, deletes them (and everything below them) first. It's all one transaction, so readers see
+     * either the old contents or the new ones, never a mix or a part of them.
+     * @return How many entries were stored
      */
-    private int deleteFolderContents(final SQLiteDatabase db, final String table, final Folder folder) {
-        // Get a Cursor for the folder contents
-        final Uri folderContentsUri = DataSource.buildUri(table, DataSource.CommandType.FOLDER_CONTENTS, folder);
-        final String[] columns = { DatabaseHelper.ID.name, DatabaseHelper.IS_FOLDER.name };
-        final Cursor folderContentsCursor = query(folderContentsUri, columns, null, null, null);
+    private int commitStaged(final SQLiteDatabase db, final String table, final long stagingId,
+            final ContentValues values) {
+        final Integer folderId = values.getAsInteger(STAGED_FOLDER);
+        final Boolean replace = values.getAsBoolean(STAGED_REPLACE);
+        final String stagingTable = getStagingTable(table), stagingSelection = STAGING_ID + "=" + stagingId;
+        final Map<Integer, String> ancestries = new HashMap<Integer, String>();
+        int count = 0;
+
+        db.beginTransaction();
+        try {
+            if (replace != null && replace) {
+                if (folderId == null)
+                    deleteTopLevelFolders(db, table);
+                else
+                    deleteSubtree(db, table, folderId);
+            }
 
-        int deletedEntries = 0;
+            final Cursor c = db.query(stagingTable, DatabaseHelper.getColumnNames(), stagingSelection, null, null,
+                    null, "rowid");
+            final SQLiteStatement insert = db.compileStatement(getInsertStatement(table));
+            try {
+                final ContentValues cv = new ContentValues();
+                while (c.moveToNext()) {
+                    cv.clear();
+                    DatabaseUtils.cursorRowToContentValues(c, cv);
+                    prepareEntry(db, table, cv, ancestries);
+                    bindColumns(insert, 1, cv);
+                    insert.executeInsert();
+                    count++;
+                }
+            } finally {
+                insert.close();
+                c.close();
+            }
 
-        while (folderContentsCursor.moveToNext()) {
-            final Folder child = new Folder(folderContentsCursor);
+            db.delete(stagingTable, stagingSelection, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
-            // If the current entry is a folder, recursively delete all of its children
-            if (child.isFolder)
-                deleteFolderContents(db, table, child);
+        return count;
+    }
 
-            // Delete the entry itself
-            if (!folder.equals(Folder.ROOT_FOLDER)) {
-                final Uri deleteUri = DataSource.buildUri(table, DataSource.CommandType.FILESYSTEM_ENTRY, folder);
-                delete(deleteUri, null, null);
-            }
+    private static int deleteTopLevelFolders(final SQLiteDatabase db, final String table) {
+        // First delete top-level folders, to get a valid count...
+        final int topLevelFolderCount = db.delete(table, DatabaseHelper.IS_TOP_LEVEL.name + "=1", null);
 
-            deletedEntries++;
-        }
+        // then delete everything else, since everything is a child of a top-level folder
+        db.delete(table, null, null);
 
-        return deletedEntries;
+        return topLevelFolderCount;
     }
 
     @Override
@@ -170,17 +573,21 @@ public class FilesystemEntryProvider extends ContentProvider {
         final String table = uri.getPathSegments().get(DataSource.URI_SEGMENT_TABLE_NAME);
 
         createTableIfNecessary(db, table);
+        mDatabaseHelper.scheduleCheckpoint();
 
         switch (DataSource.getCommandType(uri)) {
             case TOP_LEVEL_FOLDERS: {
                 return deleteTopLevelFolders(db, table);
             }
 
-            case FOLDER_CONTENTS: {
-                final int folderId = Integer.parseInt(uri.getLastPathSegment());
-                final Uri folderUri = DataSource.buildUri(table, DataSource.CommandType.FILESYSTEM_ENTRY, folderId);
-                final Folder f = new Folder(query(folderUri, DatabaseHelper.getColumnNames(), null, null, null));
-                return deleteFolderContents(db, table, f);
+            case FOLDER_CONTENTS:
+            case SUBTREE: {
+                return deleteSubtree(db, table, Integer.parseInt(uri.getLastPathSegment()));
+            }
+
+            // Throws away staged entries that won't be committed
+            case STAGED: {
+                return db.delete(getStagingTable(table), STAGING_ID + "=" + uri.getLastPathSegment(), null);
             }
 
             case FILESYSTEM_ENTRY: {
@@ -192,6 +599,28 @@ public class FilesystemEntryProvider extends ContentProvider {
         }
     }
 
+    // Deletes everything below a folder, however deep, with one statement; returns how many entries went
+    private static int deleteSubtree(final SQLiteDatabase db, final String table, final int id) {
+        final String[] range = getSubtreeRange(getStoredAncestry(db, table, id), id);
+        return db.delete(table, SUBTREE_SELECTION, range);
+    }
+
+    // Applies the whole batch in one transaction, so it's stored all at once (or not at all) with a single commit
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            final ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public int update(final Uri uri, final ContentValues values, final String _ignoredSelection,
             final String[] _ignoredSelectionArgs) {
@@ -199,12 +628,16 @@ public class FilesystemEntryProvider extends ContentProvider {
         final String table = uri.getPathSegments().get(DataSource.URI_SEGMENT_TABLE_NAME);
 
         createTableIfNecessary(db, table);
+        mDatabaseHelper.scheduleCheckpoint();
 
         switch (DataSource.getCommandType(uri)) {
             case UPDATE:
                 final String entryId = uri.getLastPathSegment();
                 return db.update(table, values, DatabaseHelper.ID.name + "=" + entryId, null);
 
+            case COMMIT_STAGED:
+                return commitStaged(db, table, Long.parseLong(uri.getLastPathSegment()), values);
+
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
         }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores a folder's entries in the database as they're unmarshalled, so that a large folder is never held in memory
+ * whole. They're staged a batch at a time, out of sight of readers, and only moved into the table, in one
+ * transaction, once they've all arrived; if the folder's stored contents are being replaced, they (and everything
+ * below them) are deleted in that same transaction. Until then, readers see whatever was stored before, and a
+ * retrieval that fails part of the way through leaves that untouched.
+ */
+final class FolderContentsWriter implements DataRetrievalService.EntryHandler {
+    private static final int BATCH_SIZE = 500;
+
+    // Tells the entries staged by different writers apart
+    private static final AtomicLong mNextStagingId = new AtomicLong(System.currentTimeMillis());
+
+    private final ContentResolver mResolver;
+    private final String mTable;
+    private final Folder mFolder;
+    private final boolean mReplace;
+    private final long mStagingId = mNextStagingId.getAndIncrement();
+    private final List<ContentValues> mBatch = new ArrayList<ContentValues>(BATCH_SIZE);
+
+    private boolean mStaged = false;
+
+    /**
+     * @param table The table to store the entries in
+     * @param folder The folder the entries are the contents of
+     * @param replace Whether to delete the folder's stored contents when the new ones are stored
+     */
+    FolderContentsWriter(final ContentResolver resolver, final String table, final Folder folder,
+            final boolean replace) {
+        mResolver = resolver;
+        mTable = table;
+        mFolder = folder;
+        mReplace = replace;
+    }
+
+    @Override
+    public void onEntry(final FilesystemEntry entry) {
+        mBatch.add(entry.getContentValues());
+
+        if (mBatch.size() >= BATCH_SIZE)
+            stage();
+    }
+
+    // Stores the entries, in place of the folder's old contents if they're being replaced; called once every entry has
+    // been handled, unless the folder was unmodified
+    void finish() {
+        stage();
+
+        final ContentValues values = new ContentValues();
+        if (!Folder.ROOT_FOLDER.equals(mFolder))
+            values.put(FilesystemEntryProvider.STAGED_FOLDER, mFolder.id);
+        values.put(FilesystemEntryProvider.STAGED_REPLACE, mReplace);
+
+        mResolver.update(DataSource.buildUri(mTable, DataSource.CommandType.COMMIT_STAGED, mStagingId), values,
+                null, null);
+        mStaged = false;
+    }
+
+    // Throws away whatever has been staged; the folder's stored contents are left as they were
+    void abort() {
+        mBatch.clear();
+
+        if (mStaged) {
+            mResolver.delete(DataSource.buildUri(mTable, DataSource.CommandType.STAGED, mStagingId), null, null);
+            mStaged = false;
+        }
+    }
+
+    private void stage() {
+        if (mBatch.isEmpty()) return;
+
+        mResolver.bulkInsert(DataSource.buildUri(mTable, DataSource.CommandType.STAGED, mStagingId),
+                mBatch.toArray(new ContentValues[mBatch.size()]));
+        mBatch.clear();
+        mStaged = true;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Walks a folder tree in the background, several folders at a time, handing the media files it finds to a listener
+ * one folder at a time as it goes, so that whoever's waiting on them (e.g. the download queue) can start on the first
+ * ones long before the whole tree has been listed. Folders whose contents are already stored are read from the
+ * database; the rest are retrieved from the data source (and stored) by the workers themselves, so that several are
+ * retrieved at once.
+ */
+final class FolderEnumerator {
+    private static final String logTag = "FolderEnumerator";
+
+    private static final int WORKER_COUNT = 4;
+
+    // Called on the main thread
+    interface Listener {
+        /**
+         * @param files The media files in one folder
+         * @param fileCount The number of files found so far, including these
+         * @param byteCount The total size of the files found so far, as far as it's known
+         */
+        void onFilesFound(List<MediaFile> files, int fileCount, long byteCount);
+
+        /**
+         * @param errorCount The number of folders whose contents couldn't be retrieved
+         */
+        void onFinished(int fileCount, long byteCount, int errorCount);
+    }
+
+    // Called on the workers, so it can look at the disk
+    interface Filter {
+        // Whether a media file should be handed to the listener
+        boolean accept(MediaFile file);
+    }
+
+    private final DataSource mDataSource;
+    private final Listener mListener;
+    private final Filter mFilter;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mWorkers = Executors.newFixedThreadPool(WORKER_COUNT);
+
+    // The number of folders that have been queued but not yet listed, and the running totals; guarded by this
+    private int mOutstanding = 0, mFileCount = 0, mErrorCount = 0;
+    private long mByteCount = 0;
+
+    private volatile boolean mCancelled = false;
+
+    /**
+     * @param filter Picks out the media files to hand to the listener, or null for all of them; the ones it turns down
+     *               aren't counted
+     */
+    FolderEnumerator(final DataSource dataSource, final Filter filter, final Listener listener) {
+        mDataSource = dataSource;
+        mFilter = filter;
+        mListener = listener;
+    }
+
+    void start(final Folder root) {
+        submit(root);
+    }
+
+    // Stops listing folders; the listener isn't called again
+    void cancel() {
+        mCancelled = true;
+        mWorkers.shutdownNow();
+    }
+
+    private void submit(final Folder folder) {
+        synchronized (this) {
+            mOutstanding++;
+        }
+
+        try {
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Listing a tree for the download queue isn't browsing, so it mustn't hold downloads back
+                    HttpClientPool.setBackgroundThread();
+
+                    try {
+                        list(folder);
+                    } finally {
+                        onListed();
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // Cancelled
+            onListed();
+        }
+    }
+
+    private void list(final Folder folder) {
+        if (mCancelled) return;
+
+        final List<FilesystemEntry> entries;
+        try {
+            entries = mDataSource.getFolderContents(folder);
+        } catch (final InterruptedException e) {
+            // Cancelled
+            return;
+        } catch (final Exception e) {
+            Log.w(logTag, "Couldn't list " + folder.name, e);
+            synchronized (this) {
+                mErrorCount++;
+            }
+            return;
+        }
+
+        final List<MediaFile> files = new ArrayList<MediaFile>();
+        long bytes = 0;
+
+        for (final FilesystemEntry entry : entries) {
+            if (entry.isFolder) {
+                submit((Folder) entry);
+            } else {
+                final MediaFile mf = (MediaFile) entry;
+                if (mFilter != null && !mFilter.accept(mf)) continue;
+
+                files.add(mf);
+                if (mf.size != null) bytes += mf.size;
+            }
+        }
+
+        if (files.isEmpty()) return;
+
+        final int fileCount;
+        final long byteCount;
+        synchronized (this) {
+            fileCount = mFileCount += files.size();
+            byteCount = mByteCount += bytes;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled)
+                    mListener.onFilesFound(files, fileCount, byteCount);
+            }
+        });
+    }
+
+    // Each folder's files are posted before it's counted as listed, so onFinished() always comes after all of them
+    private void onListed() {
+        final int fileCount, errorCount;
+        final long byteCount;
+
+        synchronized (this) {
+            if (--mOutstanding > 0) return;
+
+            fileCount = mFileCount;
+            byteCount = mByteCount;
+            errorCount = mErrorCount;
+        }
+
+        mWorkers.shutdown();
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled)
+                    mListener.onFinished(fileCount, byteCount, errorCount);
+            }
+        });
+    }
+}
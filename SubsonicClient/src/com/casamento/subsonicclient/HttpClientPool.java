@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.os.SystemClock;
+import android.util.Log;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A single process-wide HttpClient that keeps connections alive and reuses them across requests and threads
+final class HttpClientPool {
+    private static final String logTag = "HttpClientPool";
+
+    // Other components that open connections in parallel (e.g. DownloadService) size themselves against this
+    static final int MAX_CONNECTIONS_PER_ROUTE = 6;
+
+    private static final int
+            MAX_TOTAL_CONNECTIONS = 12,
+            CONNECT_TIMEOUT = 15 * 1000,
+            SOCKET_TIMEOUT = 60 * 1000,
+            POOL_TIMEOUT = 30 * 1000;
+
+    // Connections that have sat unused in the pool for this long are closed
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+
+    // The user counts as browsing for this long after an interactive request finishes, which covers reading its body
+    // and the next request they're likely to make
+    private static final long INTERACTIVE_GRACE_PERIOD = 2000;
+
+    private static final AtomicLong mConnectionHits = new AtomicLong(), mConnectionMisses = new AtomicLong();
+
+    // Interactive requests in flight, and when the last one finished; bulk transfers make way for them
+    private static final AtomicInteger mInteractiveRequests = new AtomicInteger();
+    private static volatile long mLastInteractiveRequest = 0;
+
+    // Threads doing background work (e.g. syncing the library) whose requests never count as interactive
+    private static final ThreadLocal<Boolean> mBackgroundThread = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    // Bodies are always read on the thread that made the request, so this attributes transferred bytes to the caller
+    private static final ThreadLocal<long[]> mBytesReceivedByThread = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    // Honor the server's Keep-Alive timeout if it sends one; otherwise keep the connection until it's evicted as idle
+    private static final ConnectionKeepAliveStrategy mKeepAliveStrategy = new ConnectionKeepAliveStrategy() {
+        @Override
+        public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+            final HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                final HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (final NumberFormatException e) {
+                        // fall through to the default
+                    }
+                }
+            }
+
+            return IDLE_TIMEOUT;
+        }
+    };
+
+    private static final HttpClient mClient;
+
+    static {
+        final HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setTimeout(params, POOL_TIMEOUT);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+        final SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        final CountingConnManager connManager = new CountingConnManager(params, schemes);
+
+        final DefaultHttpClient client = new DefaultHttpClient(connManager, params);
+        client.setKeepAliveStrategy(mKeepAliveStrategy);
+        mClient = client;
+
+        // Periodically evict connections that the server has closed or that haven't been used in a while
+        final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, logTag + " evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connManager.closeExpiredConnections();
+                connManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }, IDLE_TIMEOUT, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private HttpClientPool() {}
+
+    static HttpResponse execute(final HttpUriRequest request) throws IOException {
+        return mClient.execute(request);
+    }
+
+    /**
+     * Executes a request that the user is waiting on (e.g. listing a folder they've opened); while any are in flight,
+     * and for a little while afterwards, bulk transfers hold back (see RateLimiter) so that it isn't kept waiting.
+     */
+    static HttpResponse executeInteractive(final HttpUriRequest request) throws IOException {
+        if (mBackgroundThread.get()) return mClient.execute(request);
+
+        mInteractiveRequests.incrementAndGet();
+        try {
+            return mClient.execute(request);
+        } finally {
+            mLastInteractiveRequest = SystemClock.uptimeMillis();
+            mInteractiveRequests.decrementAndGet();
+        }
+    }
+
+    // Marks the calling thread as a background one, whose requests are never treated as interactive
+    static void setBackgroundThread() {
+        setBackgroundThread(true);
+    }
+
+    // For threads that do both kinds of work (e.g. the data service's), marks which kind the next requests are
+    static void setBackgroundThread(final boolean background) {
+        mBackgroundThread.set(background);
+    }
+
+    // Whether the user is browsing, i.e. an interactive request is in flight or has just finished
+    static boolean isInteractive() {
+        return mInteractiveRequests.get() > 0 ||
+                (mLastInteractiveRequest != 0 &&
+                        SystemClock.uptimeMillis() - mLastInteractiveRequest < INTERACTIVE_GRACE_PERIOD);
+    }
+
+    /**
+     * Gets the body of a response executed by this pool. Closing the returned stream at (or near) the end of the body
+     * hands the connection back to the pool; closing it well before the end aborts the request instead, so that an
+     * abandoned download doesn't have to be read to the end before its connection can be released.
+     * @param request The request that produced the response
+     * @param response The response to get the body of
+     * @return The response body
+     */
+    static InputStream getContent(final HttpUriRequest request, final HttpResponse response) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        return new ResponseInputStream(request, entity.getContent());
+    }
+
+    // The number of requests that were sent over a connection that was already open
+    static long getConnectionHits() {
+        return mConnectionHits.get();
+    }
+
+    // The number of requests that had to open a new connection
+    static long getConnectionMisses() {
+        return mConnectionMisses.get();
+    }
+
+    // The number of response body bytes that have been received over the network by the calling thread
+    static long getBytesReceivedByThread() {
+        return mBytesReceivedByThread.get()[0];
+    }
+
+    static String getStatistics() {
+        final long hits = mConnectionHits.get(), misses = mConnectionMisses.get(), total = hits + misses;
+        return String.format("%d connection requests, %d reused, %d opened (%.1f%% reused)", total, hits, misses,
+                total == 0 ? 0.0 : 100.0 * hits / total);
+    }
+
+    // A connection manager that records whether each leased connection was already open, i.e. came out of the pool
+    private static class CountingConnManager extends ThreadSafeClientConnManager {
+        private CountingConnManager(final HttpParams params, final SchemeRegistry schemes) {
+            super(params, schemes);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(final long timeout, final TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    final ManagedClientConnection conn = request.getConnection(timeout, unit);
+
+                    if (conn.isOpen())
+                        mConnectionHits.incrementAndGet();
+                    else
+                        mConnectionMisses.incrementAndGet();
+
+                    return conn;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+
+    private static class ResponseInputStream extends FilterInputStream {
+        // Responses with more than this much left unread are aborted on close rather than drained
+        private static final int DRAIN_LIMIT = 64 * 1024, DRAIN_BUFFER_SIZE = 4096;
+
+        private final HttpUriRequest mRequest;
+        private boolean mEof = false;
+
+        private ResponseInputStream(final HttpUriRequest request, final InputStream in) {
+            super(in);
+            mRequest = request;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+
+            if (b == -1)
+                mEof = true;
+            else
+                mBytesReceivedByThread.get()[0]++;
+
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+            final int read = super.read(buffer, offset, count);
+
+            if (read == -1)
+                mEof = true;
+            else
+                mBytesReceivedByThread.get()[0] += read;
+
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Parsers often stop just short of the end of the body (e.g. trailing whitespace), so read a little further
+            // to see whether the connection can still be reused
+            if (!mEof) {
+                final byte[] discard = new byte[DRAIN_BUFFER_SIZE];
+                long drained = 0;
+
+                try {
+                    while (!mEof && drained < DRAIN_LIMIT) {
+                        final int read = read(discard, 0, discard.length);
+                        if (read > 0) drained += read;
+                    }
+                } catch (final IOException e) {
+                    // the connection is broken anyway, so abort it below
+                }
+            }
+
+            if (mEof) {
+                super.close();
+            } else {
+                Log.d(logTag, "Aborting partially-read response from " + mRequest.getURI());
+                mRequest.abort();
+            }
+        }
+    }
+}
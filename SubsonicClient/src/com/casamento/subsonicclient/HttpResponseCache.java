@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.util.Log;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on-disk cache of REST responses, keyed by the canonical form of the request URL. Stale entries are revalidated
+ * with a conditional request, so an unchanged response costs a 304 rather than a whole body; entries are evicted in
+ * least-recently-used order once the cache grows past its maximum size.
+ */
+final class HttpResponseCache {
+    private static final String logTag = "HttpResponseCache";
+
+    private static final String BODY_SUFFIX = ".body", META_SUFFIX = ".meta", TEMP_SUFFIX = ".tmp";
+
+    private static final String
+            META_URL = "url",
+            META_ETAG = "etag",
+            META_LAST_MODIFIED = "lastModified",
+            META_CHARSET = "charset",
+            META_EXPIRES = "expires";
+
+    private static HttpResponseCache mInstalled;
+
+    private static final AtomicLong mHits = new AtomicLong(), mRevalidations = new AtomicLong(),
+            mMisses = new AtomicLong();
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // Entry keys mapped to their size on disk, in least- to most-recently-used order; guarded by this
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long mSize = 0;
+
+    private HttpResponseCache(final File directory, final long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    // Installs a cache in the given directory for Util to use, unless one's already installed
+    static synchronized HttpResponseCache install(final File directory, final long maxSize) {
+        if (mInstalled == null) {
+            final HttpResponseCache cache = new HttpResponseCache(directory, maxSize);
+            cache.load();
+            mInstalled = cache;
+        }
+
+        return mInstalled;
+    }
+
+    static synchronized HttpResponseCache getInstalled() {
+        return mInstalled;
+    }
+
+    // Responses served straight from the cache, without contacting the server
+    static long getHitCount() {
+        return mHits.get();
+    }
+
+    // Responses the server confirmed were unchanged, and that were then served from the cache
+    static long getRevalidationCount() {
+        return mRevalidations.get();
+    }
+
+    // Responses that had to be transferred in full
+    static long getMissCount() {
+        return mMisses.get();
+    }
+
+    // Rebuilds the index from the files in the cache directory, oldest access first
+    private synchronized void load() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(logTag, "Couldn't create cache directory " + mDirectory);
+            return;
+        }
+
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File f1, final File f2) {
+                final long t1 = f1.lastModified(), t2 = f2.lastModified();
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+
+        for (final File file : files) {
+            final String name = file.getName();
+
+            if (name.endsWith(BODY_SUFFIX)) {
+                final String key = name.substring(0, name.length() - BODY_SUFFIX.length());
+
+                if (getMetaFile(key).exists()) {
+                    mEntries.put(key, file.length());
+                    mSize += file.length();
+                    continue;
+                }
+            } else if (name.endsWith(META_SUFFIX)) {
+                final String key = name.substring(0, name.length() - META_SUFFIX.length());
+                if (getBodyFile(key).exists()) continue;
+            }
+
+            // Orphaned metadata, bodies and temporary files from an interrupted write
+            file.delete();
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * Looks up the cached response to a request.
+     * @param url The URL of the request
+     * @param username The user the request is made as, since responses can differ between users
+     * @return The cached response, or null if there isn't one
+     */
+    Entry get(final String url, final String username) {
+        final String key = getKey(url, username);
+
+        synchronized (this) {
+            if (!mEntries.containsKey(key)) return null;
+        }
+
+        final Properties meta = new Properties();
+        try {
+            final InputStream in = new FileInputStream(getMetaFile(key));
+            try {
+                meta.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            Log.w(logTag, "Couldn't read cache entry for " + url, e);
+            remove(key);
+            return null;
+        }
+
+        return new Entry(key, meta);
+    }
+
+    // Serves a response that's still fresh without contacting the server; returns null if it's been evicted since it
+    // was looked up, in which case it has to be fetched again
+    ResponseBody hit(final Entry entry) throws IOException {
+        final ResponseBody body = open(entry);
+        if (body != null) mHits.incrementAndGet();
+
+        return body;
+    }
+
+    // Serves a response that the server has confirmed (with a 304) hasn't changed since it was cached; returns null if
+    // it's been evicted since it was looked up, in which case it has to be fetched again
+    ResponseBody revalidated(final Entry entry, final HttpResponse notModified) throws IOException {
+        final ResponseBody body = open(entry);
+        if (body == null) return null;
+
+        mRevalidations.incrementAndGet();
+
+        // The 304 can carry updated validators and freshness information
+        entry.update(notModified);
+        try {
+            writeMeta(entry.mKey, entry.mMeta);
+        } catch (final IOException e) {
+            body.close();
+            throw e;
+        }
+
+        return body;
+    }
+
+    /**
+     * Caches a full response as it's read. The response is only committed to the cache once it's been read to the
+     * end, so bodies that are abandoned part of the way through are never stored.
+     * @param url The URL of the request
+     * @param username The user the request was made as
+     * @param response The response
+     * @param body The (decompressed) body of the response
+     * @return A body that reads the response and stores it on the way through
+     */
+    ResponseBody put(final String url, final String username, final HttpResponse response, final ResponseBody body)
+            throws IOException {
+        mMisses.incrementAndGet();
+
+        final Entry entry = new Entry(getKey(url, username), new Properties());
+        entry.mMeta.setProperty(META_URL, url);
+        if (body.getCharset() != null)
+            entry.mMeta.setProperty(META_CHARSET, body.getCharset().name());
+        entry.update(response);
+
+        // Responses without validators or freshness information could never be reused, so there's no point storing them
+        if (!entry.isStorable()) return body;
+
+        final File temp = File.createTempFile(entry.mKey, TEMP_SUFFIX, mDirectory);
+        return new ResponseBody(new CachingInputStream(body.byteStream(), entry, temp), body.getContentLength(),
+                body.getCharset());
+    }
+
+    // Returns null if the entry's body has gone, i.e. it's been evicted by trimToSize() since it was looked up
+    private ResponseBody open(final Entry entry) throws IOException {
+        final File bodyFile = getBodyFile(entry.mKey);
+
+        final InputStream in;
+        try {
+            in = new FileInputStream(bodyFile);
+        } catch (final FileNotFoundException e) {
+            Log.d(logTag, "Cache entry " + entry.mKey + " was evicted before it could be read");
+            remove(entry.mKey);
+            return null;
+        }
+
+        // Mark the entry as used, both in the access-ordered index (for eviction now) and on disk (for after a restart)
+        synchronized (this) {
+            mEntries.get(entry.mKey);
+        }
+        bodyFile.setLastModified(System.currentTimeMillis());
+
+        final String charsetName = entry.mMeta.getProperty(META_CHARSET);
+        return new ResponseBody(in, bodyFile.length(), charsetName == null ? null : Charset.forName(charsetName));
+    }
+
+    private void commit(final Entry entry, final File temp) throws IOException {
+        writeMeta(entry.mKey, entry.mMeta);
+
+        synchronized (this) {
+            final File bodyFile = getBodyFile(entry.mKey);
+            if (!temp.renameTo(bodyFile)) {
+                temp.delete();
+                throw new IOException("Couldn't commit cache entry " + bodyFile);
+            }
+
+            final Long oldSize = mEntries.put(entry.mKey, bodyFile.length());
+            mSize += bodyFile.length() - (oldSize == null ? 0 : oldSize);
+
+            trimToSize();
+        }
+    }
+
+    private synchronized void remove(final String key) {
+        final Long size = mEntries.remove(key);
+        if (size != null) mSize -= size;
+
+        getBodyFile(key).delete();
+        getMetaFile(key).delete();
+    }
+
+    // Evicts least-recently-used entries until the cache fits within its maximum size
+    private synchronized void trimToSize() {
+        final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue();
+
+            getBodyFile(eldest.getKey()).delete();
+            getMetaFile(eldest.getKey()).delete();
+        }
+    }
+
+    private void writeMeta(final String key, final Properties meta) throws IOException {
+        final File temp = File.createTempFile(key, TEMP_SUFFIX, mDirectory);
+        final OutputStream out = new FileOutputStream(temp);
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(getMetaFile(key))) {
+            temp.delete();
+            throw new IOException("Couldn't write cache metadata for " + key);
+        }
+    }
+
+    private File getBodyFile(final String key) {
+        return new File(mDirectory, key + BODY_SUFFIX);
+    }
+
+    private File getMetaFile(final String key) {
+        return new File(mDirectory, key + META_SUFFIX);
+    }
+
+    // Hashes the canonical form of a request, in which the query parameters are sorted so that equivalent URLs match
+    private static String getKey(final String url, final String username) {
+        final int queryStart = url.indexOf('?');
+        final StringBuilder canonical = new StringBuilder(url.length() + 32);
+
+        if (queryStart == -1) {
+            canonical.append(url);
+        } else {
+            final String[] params = url.substring(queryStart + 1).split("&");
+            Arrays.sort(params);
+
+            canonical.append(url, 0, queryStart + 1);
+            for (final String param : params)
+                canonical.append(param).append('&');
+        }
+
+        canonical.append('\n').append(username);
+
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(canonical.toString().getBytes("UTF-8"));
+
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (final byte b : digest)
+                hex.append(String.format("%02x", b));
+
+            return hex.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5 and UTF-8, so these are never thrown
+            throw new RuntimeException(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // A cached response's validators and freshness information
+    static final class Entry {
+        private final String mKey;
+        private final Properties mMeta;
+
+        private Entry(final String key, final Properties meta) {
+            mKey = key;
+            mMeta = meta;
+        }
+
+        boolean isFresh() {
+            final String expires = mMeta.getProperty(META_EXPIRES);
+            return expires != null && System.currentTimeMillis() < Long.parseLong(expires);
+        }
+
+        // Makes the request conditional, so the server only sends a body if it has changed since it was cached
+        void addConditionalHeaders(final HttpUriRequest request) {
+            final String etag = mMeta.getProperty(META_ETAG), lastModified = mMeta.getProperty(META_LAST_MODIFIED);
+
+            if (etag != null)
+                request.addHeader("If-None-Match", etag);
+            if (lastModified != null)
+                request.addHeader("If-Modified-Since", lastModified);
+        }
+
+        private boolean isStorable() {
+            return mMeta.getProperty(META_ETAG) != null || mMeta.getProperty(META_LAST_MODIFIED) != null ||
+                    mMeta.getProperty(META_EXPIRES) != null;
+        }
+
+        private void update(final HttpResponse response) {
+            final Header etag = response.getFirstHeader("ETag");
+            if (etag != null)
+                mMeta.setProperty(META_ETAG, etag.getValue());
+
+            final Header lastModified = response.getFirstHeader("Last-Modified");
+            if (lastModified != null)
+                mMeta.setProperty(META_LAST_MODIFIED, lastModified.getValue());
+
+            final long expires = getExpiry(response);
+            if (expires > 0)
+                mMeta.setProperty(META_EXPIRES, Long.toString(expires));
+            else
+                mMeta.remove(META_EXPIRES);
+        }
+
+        // Works out until when a response can be used without revalidating it; 0 means it must always be revalidated
+        private static long getExpiry(final HttpResponse response) {
+            for (final Header cacheControl : response.getHeaders("Cache-Control")) {
+                for (final String directive : cacheControl.getValue().split(",")) {
+                    final String d = directive.trim().toLowerCase(Locale.US);
+
+                    if (d.equals("no-cache") || d.equals("no-store") || d.equals("must-revalidate"))
+                        return 0;
+
+                    if (d.startsWith("max-age=")) {
+                        try {
+                            return System.currentTimeMillis() + Long.parseLong(d.substring(8)) * 1000;
+                        } catch (final NumberFormatException e) {
+                            return 0;
+                        }
+                    }
+                }
+            }
+
+            final Header expires = response.getFirstHeader("Expires");
+            if (expires != null) {
+                try {
+                    return DateUtils.parseDate(expires.getValue()).getTime();
+                } catch (final DateParseException e) {
+                    return 0;
+                }
+            }
+
+            return 0;
+        }
+    }
+
+    // Copies a response body into a temporary file as it's read, and commits it to the cache once it's complete
+    private class CachingInputStream extends FilterInputStream {
+        private static final int DRAIN_LIMIT = 64 * 1024, DRAIN_BUFFER_SIZE = 4096;
+
+        private final Entry mEntry;
+        private final File mTemp;
+        private OutputStream mOut;
+        private boolean mComplete = false;
+
+        private CachingInputStream(final InputStream in, final Entry entry, final File temp) throws IOException {
+            super(in);
+            mEntry = entry;
+            mTemp = temp;
+            mOut = new FileOutputStream(temp);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+
+            if (b == -1)
+                mComplete = true;
+            else
+                write(new byte[] { (byte) b }, 0, 1);
+
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+            final int read = super.read(buffer, offset, count);
+
+            if (read == -1)
+                mComplete = true;
+            else
+                write(buffer, offset, read);
+
+            return read;
+        }
+
+        // A failure to write the cache shouldn't fail the request itself
+        private void write(final byte[] buffer, final int offset, final int count) {
+            if (mOut == null) return;
+
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (final IOException e) {
+                Log.w(logTag, "Couldn't write cache entry", e);
+                abandon();
+            }
+        }
+
+        private void abandon() {
+            try {
+                mOut.close();
+            } catch (final IOException e) {
+                // nothing more to do; the file's being deleted anyway
+            }
+
+            mOut = null;
+            mTemp.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Parsers usually stop reading just short of the end of the body, so finish reading it here
+            if (!mComplete && mOut != null) {
+                final byte[] discard = new byte[DRAIN_BUFFER_SIZE];
+                long drained = 0;
+
+                try {
+                    while (!mComplete && drained < DRAIN_LIMIT) {
+                        final int read = read(discard, 0, discard.length);
+                        if (read > 0) drained += read;
+                    }
+                } catch (final IOException e) {
+                    // the body is incomplete, so it's abandoned below
+                }
+            }
+
+            try {
+                super.close();
+            } finally {
+                if (mOut != null) {
+                    if (mComplete) {
+                        try {
+                            mOut.close();
+                            mOut = null;
+                            commit(mEntry, mTemp);
+                        } catch (final IOException e) {
+                            Log.w(logTag, "Couldn't commit cache entry", e);
+                            mTemp.delete();
+                        }
+                    } else {
+                        abandon();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a data source's whole library into the local database, so that all of it can be browsed offline. Folders are
+ * listed by a pool of workers in parallel, and their contents are written in large transactions. The folders that
+ * haven't been written yet are checkpointed to disk after every transaction, so an interrupted sync picks up where it
+ * left off the next time it's started. Top-level folders that the data source reports unchanged since the last
+ * complete sync are skipped along with everything in them.
+ */
+abstract class LibrarySyncService extends Service {
+    private static final String logTag = "LibrarySyncService";
+
+    static final String IN_ACCESS_INFO = DataRetrievalService.IN_ACCESS_INFO;
+    static final String IN_TABLE = "table";
+    static final String IN_RESTART = "restart";
+
+    private static final int WORKER_COUNT = 4, BATCH_SIZE = 1000;
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private static final String CHECKPOINT_PREFIX = "library_sync_", CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private Crawl mCrawl;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        DataRetrievalService.installHttpResponseCache(this);
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return null;
+    }
+
+    @Override
+    public synchronized int onStartCommand(final Intent intent, final int flags, final int startId) {
+        if (mCrawl != null) {
+            Log.i(logTag, "Library sync already in progress");
+        } else {
+            final DataSource.AccessInformation accessInfo = intent.getParcelableExtra(IN_ACCESS_INFO);
+            final String table = intent.getStringExtra(IN_TABLE);
+            final boolean restart = intent.getBooleanExtra(IN_RESTART, false);
+
+            mCrawl = new Crawl(accessInfo, table, restart);
+            new Thread(mCrawl, logTag).start();
+
+            updateNotification(getString(R.string.library_sync_starting));
+        }
+
+        // If the process is killed, the intent is delivered again, and the sync resumes from its checkpoint
+        return START_REDELIVER_INTENT;
+    }
+
+    @Override
+    public synchronized void onDestroy() {
+        super.onDestroy();
+
+        if (mCrawl != null)
+            mCrawl.cancel();
+    }
+
+    private synchronized void onCrawlFinished(final Crawl crawl) {
+        if (mCrawl == crawl) {
+            mCrawl = null;
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    private void updateNotification(final CharSequence progress) {
+        final PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        startForeground(R.string.library_sync, new NotificationCompat.Builder(this)
+                .setContentIntent(contentIntent)
+                .setSmallIcon(R.drawable.ic_action_reload)
+                .setContentTitle(getString(R.string.library_sync))
+                .setContentText(progress)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .getNotification());
+    }
+
+    // Implemented by each data source, like the methods of DataRetrievalService; they're called from several threads
+    abstract Folder[] retrieveTopLevelFolders(DataSource.AccessInformation accessInfo) throws Exception;
+    abstract long retrieveFolderContents(DataSource.AccessInformation accessInfo, Folder f, long ifModifiedSince,
+            DataRetrievalService.EntryHandler handler) throws Exception;
+
+    // The last-modified time of each top-level folder as of the last sync that finished, keyed by folder ID
+    private SharedPreferences getSyncedPreferences(final String table) {
+        return getSharedPreferences(CHECKPOINT_PREFIX + table, Context.MODE_PRIVATE);
+    }
+
+    private class Crawl implements Runnable {
+        private final DataSource.AccessInformation mAccessInfo;
+        private final String mTable;
+        private final boolean mRestart;
+        private final File mCheckpointFile;
+
+        private final ExecutorService mWorkers = Executors.newFixedThreadPool(WORKER_COUNT);
+
+        // Folders whose contents haven't been written to the database yet; guarded by itself
+        private final Map<Integer, Folder> mUnfinished = new LinkedHashMap<Integer, Folder>();
+
+        // Entries waiting to be written, and the folders whose contents they complete; guarded by mBatch
+        private final List<ContentValues> mBatch = new ArrayList<ContentValues>(BATCH_SIZE);
+        private final List<Folder> mBatchFolders = new ArrayList<Folder>();
+
+        // The last-modified times of the top-level folders listed by this sync, recorded once it's complete
+        private final Map<Integer, Long> mLastModified = new ConcurrentHashMap<Integer, Long>();
+
+        // Serializes writes, so that checkpoints are written in the same order as the transactions they describe
+        private final Object mWriteLock = new Object();
+
+        // The number of folders that have been queued but not yet listed; guarded by this
+        private int mOutstanding = 0;
+
+        private final AtomicLong mFolderCount = new AtomicLong(), mEntryCount = new AtomicLong(),
+                mErrorCount = new AtomicLong(), mSkippedCount = new AtomicLong(), mLastProgressTime = new AtomicLong();
+        private long mStartTime;
+        private volatile boolean mCancelled = false;
+
+        private Crawl(final DataSource.AccessInformation accessInfo, final String table, final boolean restart) {
+            mAccessInfo = accessInfo;
+            mTable = table;
+            mRestart = restart;
+            mCheckpointFile = new File(getFilesDir(), CHECKPOINT_PREFIX + table + CHECKPOINT_SUFFIX);
+        }
+
+        @Override
+        public void run() {
+            mStartTime = SystemClock.elapsedRealtime();
+
+            // The sync's requests mustn't be mistaken for browsing, which would throttle downloads for its whole length
+            HttpClientPool.setBackgroundThread();
+
+            try {
+                List<Folder> startFolders = mRestart ? null : readCheckpoint();
+
+                if (startFolders == null || startFolders.isEmpty()) {
+                    final Folder[] topLevelFolders = retrieveTopLevelFolders(mAccessInfo);
+
+                    final ContentValues[] values = new ContentValues[topLevelFolders.length];
+                    for (int i = 0; i < topLevelFolders.length; i++)
+                        values[i] = topLevelFolders[i].getContentValues();
+                    getContentResolver().bulkInsert(DataSource.buildUri(mTable, DataSource.CommandType.INSERT), values);
+
+                    startFolders = Arrays.asList(topLevelFolders);
+                } else {
+                    Log.i(logTag, "Resuming library sync of " + mTable + " with " + startFolders.size() +
+                            " folders left to list");
+                }
+
+                synchronized (mUnfinished) {
+                    for (final Folder f : startFolders)
+                        mUnfinished.put(f.id, f);
+                }
+                writeCheckpoint();
+
+                for (final Folder f : startFolders)
+                    submit(f);
+
+                awaitCompletion();
+                flush();
+
+                if (!mCancelled) {
+                    synchronized (mUnfinished) {
+                        if (mUnfinished.isEmpty()) {
+                            mCheckpointFile.delete();
+
+                            final SharedPreferences.Editor synced = getSyncedPreferences(mTable).edit();
+                            for (final Map.Entry<Integer, Long> e : mLastModified.entrySet())
+                                synced.putLong(e.getKey().toString(), e.getValue());
+                            synced.apply();
+                        }
+                    }
+
+                    Log.i(logTag, "Library sync of " + mTable + " finished: " + getProgressString() + ", " +
+                            mSkippedCount.get() + " unchanged top-level folders skipped, " + mErrorCount.get() +
+                            " folders failed");
+                }
+            } catch (final Exception e) {
+                Log.e(logTag, "Library sync of " + mTable + " failed", e);
+            } finally {
+                mWorkers.shutdownNow();
+                onCrawlFinished(this);
+            }
+        }
+
+        private void cancel() {
+            mCancelled = true;
+            mWorkers.shutdownNow();
+
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        private void submit(final Folder folder) {
+            synchronized (this) {
+                mOutstanding++;
+            }
+
+            try {
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        HttpClientPool.setBackgroundThread();
+
+                        try {
+                            list(folder);
+                        } finally {
+                            onListed();
+                        }
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                // The sync has been cancelled; the folder stays in the checkpoint
+                onListed();
+            }
+        }
+
+        private synchronized void onListed() {
+            if (--mOutstanding == 0)
+                notifyAll();
+        }
+
+        private synchronized void awaitCompletion() throws InterruptedException {
+            while (mOutstanding > 0 && !mCancelled)
+                wait();
+        }
+
+        private void list(final Folder folder) {
+            if (mCancelled) return;
+
+            final List<ContentValues> contents = new ArrayList<ContentValues>();
+            final List<Folder> children = new ArrayList<Folder>();
+
+            // Only top-level folders are checked against the last sync; a restart lists everything regardless
+            final long ifModifiedSince = folder.isTopLevel && !mRestart ?
+                    getSyncedPreferences(mTable).getLong(folder.id.toString(), 0) :
+                    0;
+
+            try {
+                final long lastModified = retrieveFolderContents(mAccessInfo, folder, ifModifiedSince,
+                        new DataRetrievalService.EntryHandler() {
+                            @Override
+                            public void onEntry(final FilesystemEntry entry) {
+                                contents.add(entry.getContentValues());
+
+                                if (entry.isFolder)
+                                    children.add((Folder) entry);
+                            }
+                        });
+
+                if (lastModified == DataRetrievalService.NOT_MODIFIED) {
+                    // Nothing in this folder has changed, so don't descend into it
+                    mSkippedCount.incrementAndGet();
+                    addToBatch(folder, contents);
+                    return;
+                }
+
+                if (folder.isTopLevel && lastModified > 0)
+                    mLastModified.put(folder.id, lastModified);
+            } catch (final Exception e) {
+                // The folder stays unfinished, so it's retried when the sync is resumed
+                mErrorCount.incrementAndGet();
+                Log.w(logTag, "Couldn't list folder " + folder.id, e);
+                return;
+            }
+
+            synchronized (mUnfinished) {
+                for (final Folder child : children)
+                    mUnfinished.put(child.id, child);
+            }
+
+            for (final Folder child : children)
+                submit(child);
+
+            mFolderCount.incrementAndGet();
+            mEntryCount.addAndGet(contents.size());
+
+            addToBatch(folder, contents);
+            reportProgress();
+        }
+
+        private void addToBatch(final Folder folder, final List<ContentValues> contents) {
+            ContentValues[] values = null;
+            Folder[] completed = null;
+
+            synchronized (mBatch) {
+                mBatch.addAll(contents);
+                mBatchFolders.add(folder);
+
+                if (mBatch.size() >= BATCH_SIZE) {
+                    values = mBatch.toArray(new ContentValues[mBatch.size()]);
+                    completed = mBatchFolders.toArray(new Folder[mBatchFolders.size()]);
+                    mBatch.clear();
+                    mBatchFolders.clear();
+                }
+            }
+
+            if (values != null)
+                write(values, completed);
+        }
+
+        private void flush() {
+            final ContentValues[] values;
+            final Folder[] completed;
+
+            synchronized (mBatch) {
+                values = mBatch.toArray(new ContentValues[mBatch.size()]);
+                completed = mBatchFolders.toArray(new Folder[mBatchFolders.size()]);
+                mBatch.clear();
+                mBatchFolders.clear();
+            }
+
+            write(values, completed);
+        }
+
+        // Writes a batch of entries in a single transaction, then checkpoints the folders that are still unfinished
+        private void write(final ContentValues[] values, final Folder[] completed) {
+            synchronized (mWriteLock) {
+                if (values.length > 0)
+                    getContentResolver().bulkInsert(DataSource.buildUri(mTable, DataSource.CommandType.INSERT), values);
+
+                synchronized (mUnfinished) {
+                    for (final Folder f : completed)
+                        mUnfinished.remove(f.id);
+                }
+
+                writeCheckpoint();
+            }
+        }
+
+        private void reportProgress() {
+            final long now = SystemClock.elapsedRealtime(), last = mLastProgressTime.get();
+
+            if (now - last >= PROGRESS_INTERVAL && mLastProgressTime.compareAndSet(last, now))
+                updateNotification(getProgressString());
+        }
+
+        private String getProgressString() {
+            final long entries = mEntryCount.get();
+            final double seconds = Math.max(1, SystemClock.elapsedRealtime() - mStartTime) / 1000.0;
+
+            return getString(R.string.library_sync_progress, mFolderCount.get(), entries, entries / seconds);
+        }
+
+        // Each line of the checkpoint is the ID of an unfinished folder and whether it's a top-level folder
+        private void writeCheckpoint() {
+            final File temp = new File(mCheckpointFile.getPath() + ".tmp");
+
+            try {
+                final Writer out = new BufferedWriter(new FileWriter(temp));
+                try {
+                    synchronized (mUnfinished) {
+                        for (final Folder f : mUnfinished.values())
+                            out.write(f.id + " " + (f.isTopLevel ? 1 : 0) + "\n");
+                    }
+                } finally {
+                    out.close();
+                }
+
+                if (!temp.renameTo(mCheckpointFile))
+                    throw new IOException("Couldn't replace " + mCheckpointFile);
+            } catch (final IOException e) {
+                Log.w(logTag, "Couldn't write library sync checkpoint", e);
+            }
+        }
+
+        private List<Folder> readCheckpoint() {
+            if (!mCheckpointFile.exists()) return null;
+
+            final List<Folder> folders = new ArrayList<Folder>();
+
+            try {
+                final BufferedReader in = new BufferedReader(new FileReader(mCheckpointFile));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        final String[] parts = line.split(" ");
+                        if (parts.length != 2) continue;
+
+                        // Only the ID and top-level flag are needed to list a folder
+                        folders.add(new Folder(Integer.parseInt(parts[0]), null, "", null, null, null, null,
+                                parts[1].equals("1")));
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (final Exception e) {
+                Log.w(logTag, "Couldn't read library sync checkpoint; starting over", e);
+                return null;
+            }
+
+            return folders;
+        }
+    }
+}
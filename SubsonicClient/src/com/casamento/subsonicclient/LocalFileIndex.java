@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An index of the media files that have been downloaded, keyed by server (i.e. table), media id and format, with the
+ * size and modification time each file had when it was saved. The whole index is kept in memory, so looking a file up
+ * never touches the disk; it's also kept in its own database, so that it survives restarts. The database is read, and
+ * changes are written (and mirrored into the CACHED column of the server's table), on a background thread; lookups
+ * wait for it to have been read, so they mustn't be made on the main thread.
+ */
+final class LocalFileIndex {
+    private static final String logTag = "LocalFileIndex";
+
+    private static final String DATABASE_NAME = "local_files.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "local_files";
+    private static final String
+            SERVER = "server",
+            MEDIA_ID = "media_id",
+            FORMAT = "format",
+            PATH = "path",
+            SIZE = "size",
+            MODIFIED = "modified";
+
+    private static LocalFileIndex mInstance;
+
+    private final Context mContext;
+    private final SQLiteOpenHelper mHelper;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, logTag);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Every indexed file, and the number of formats each media file has been downloaded in; guarded by this
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final Map<String, Integer> mFormatCounts = new HashMap<String, Integer>();
+
+    // Counted down once the database has been read into memory
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+
+    private static class Entry {
+        private final String path;
+        private final long size, modified;
+
+        private Entry(final String path, final long size, final long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    static synchronized LocalFileIndex get(final Context context) {
+        if (mInstance == null)
+            mInstance = new LocalFileIndex(context.getApplicationContext());
+
+        return mInstance;
+    }
+
+    private LocalFileIndex(final Context context) {
+        mContext = context;
+        mHelper = new SQLiteOpenHelper(context, DATABASE_NAME, null, DATABASE_VERSION) {
+            @Override
+            public void onCreate(final SQLiteDatabase db) {
+                db.execSQL("create table " + TABLE + "(" +
+                        SERVER + " text not null," +
+                        MEDIA_ID + " integer not null," +
+                        FORMAT + " text not null," +
+                        PATH + " text not null," +
+                        SIZE + " integer not null," +
+                        MODIFIED + " integer not null," +
+                        "primary key (" + SERVER + "," + MEDIA_ID + "," + FORMAT + "))");
+            }
+
+            @Override
+            public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+                db.execSQL("drop table if exists " + TABLE);
+                onCreate(db);
+            }
+        };
+
+        // Ahead of any changes, which go through the same thread
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load();
+                } catch (final RuntimeException e) {
+                    Log.e(logTag, "Couldn't read the local file index", e);
+                } finally {
+                    mLoaded.countDown();
+                }
+            }
+        });
+    }
+
+    private void load() {
+        final Cursor c = mHelper.getReadableDatabase().query(TABLE,
+                new String[] { SERVER, MEDIA_ID, FORMAT, PATH, SIZE, MODIFIED }, null, null, null, null, null);
+        try {
+            synchronized (this) {
+                while (c.moveToNext()) {
+                    put(c.getString(0), c.getInt(1), c.getString(2),
+                            new Entry(c.getString(3), c.getLong(4), c.getLong(5)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    // Waits for the database to have been read, so that nothing is looked up in (or added to) a partial index
+    private void awaitLoaded() {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                mLoaded.await();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private static String getKey(final String server, final int mediaId) {
+        return server + "/" + mediaId;
+    }
+
+    private static String getKey(final String server, final int mediaId, final String format) {
+        return getKey(server, mediaId) + "/" + format;
+    }
+
+    // The server doesn't report a suffix for every file; those are indexed under an empty format
+    private static String normaliseFormat(final String format) {
+        return format == null ? "" : format;
+    }
+
+    // Whether a media file has been downloaded, in any format; doesn't touch the disk
+    boolean isCached(final String server, final int mediaId) {
+        awaitLoaded();
+
+        synchronized (this) {
+            return mFormatCounts.containsKey(getKey(server, mediaId));
+        }
+    }
+
+    /**
+     * Checks whether a file has already been downloaded in full: either it's indexed and still as it was when it was
+     * saved, or (for files saved before they were indexed) it's at the given path and has the expected size, in which
+     * case it's indexed now. An indexed file that has since been changed or deleted is dropped from the index.
+     * @param format The suffix of the format the file's saved in, or null if the server didn't give one
+     * @param path Where the file would have been saved
+     * @param expectedSize The size of the complete file, or -1 if it isn't known
+     * @return Whether the file is available, so there's no need to download it
+     */
+    boolean isAvailable(final String server, final int mediaId, final String suffix, final String path,
+            final long expectedSize) {
+        awaitLoaded();
+
+        final String format = normaliseFormat(suffix);
+        final Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(getKey(server, mediaId, format));
+        }
+
+        if (entry != null) {
+            final File file = new File(entry.path);
+            if (file.length() == entry.size && file.lastModified() == entry.modified &&
+                    (expectedSize <= 0 || entry.size == expectedSize))
+                return true;
+
+            Log.d(logTag, entry.path + " has changed since it was downloaded");
+            remove(server, mediaId, format);
+        }
+
+        final File file = new File(path);
+        if (expectedSize > 0 && file.length() == expectedSize) {
+            add(server, mediaId, format, file);
+            return true;
+        }
+
+        return false;
+    }
+
+    // Indexes a file that has just been saved; the suffix may be null
+    void add(final String server, final int mediaId, final String suffix, final File file) {
+        awaitLoaded();
+
+        final String format = normaliseFormat(suffix);
+        final Entry entry = new Entry(file.getPath(), file.length(), file.lastModified());
+
+        synchronized (this) {
+            put(server, mediaId, format, entry);
+        }
+
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ContentValues cv = new ContentValues();
+                cv.put(SERVER, server);
+                cv.put(MEDIA_ID, mediaId);
+                cv.put(FORMAT, format);
+                cv.put(PATH, entry.path);
+                cv.put(SIZE, entry.size);
+                cv.put(MODIFIED, entry.modified);
+
+                try {
+                    mHelper.getWritableDatabase().insertWithOnConflict(TABLE, null, cv,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                } catch (final RuntimeException e) {
+                    Log.e(logTag, "Couldn't index " + entry.path, e);
+                }
+
+                updateCachedColumn(server, mediaId);
+            }
+        });
+    }
+
+    private void remove(final String server, final int mediaId, final String format) {
+        synchronized (this) {
+            if (mEntries.remove(getKey(server, mediaId, format)) == null) return;
+
+            final String key = getKey(server, mediaId);
+            final int count = mFormatCounts.get(key);
+            if (count == 1)
+                mFormatCounts.remove(key);
+            else
+                mFormatCounts.put(key, count - 1);
+        }
+
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.getWritableDatabase().delete(TABLE,
+                            SERVER + "=? and " + MEDIA_ID + "=? and " + FORMAT + "=?",
+                            new String[] { server, Integer.toString(mediaId), format });
+                } catch (final RuntimeException e) {
+                    Log.e(logTag, "Couldn't remove " + getKey(server, mediaId, format) + " from the index", e);
+                }
+
+                updateCachedColumn(server, mediaId);
+            }
+        });
+    }
+
+    // Must be called while synchronized
+    private void put(final String server, final int mediaId, final String format, final Entry entry) {
+        if (mEntries.put(getKey(server, mediaId, format), entry) == null) {
+            final Integer count = mFormatCounts.get(getKey(server, mediaId));
+            mFormatCounts.put(getKey(server, mediaId), count == null ? 1 : count + 1);
+        }
+    }
+
+    // Brings the server table's CACHED column for a media file into line with the index
+    private void updateCachedColumn(final String server, final int mediaId) {
+        final ContentValues cv = new ContentValues();
+        cv.put(DatabaseHelper.CACHED.name, isCached(server, mediaId) ? 1 : 0);
+
+        try {
+            mContext.getContentResolver().update(
+                    DataSource.buildUri(server, DataSource.CommandType.UPDATE, mediaId), cv, null, null);
+        } catch (final RuntimeException e) {
+            Log.w(logTag, "Couldn't update " + getKey(server, mediaId), e);
+        }
+    }
+}
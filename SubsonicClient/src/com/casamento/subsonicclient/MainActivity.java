@@ -29,9 +29,7 @@ import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentTransaction;
 import android.content.*;
-import android.database.Cursor;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.Menu;
@@ -40,6 +38,8 @@ import android.view.Window;
 
 public class MainActivity extends Activity
         implements ServerBrowserFragment.ActivityCallback, DownloadManagerFragment.ActivityCallback {
+    private static final String logTag = "MainActivity";
+
     private DataSource mDataSource;
 
     // TODO: implement preference screen with list of servers, so this isn't hard-coded
@@ -61,7 +61,8 @@ public class MainActivity extends Activity
         setProgressBarIndeterminateVisibility(false);
 
         // Set up the test data source (TODO: remove once the preference screen works)
-        mDataSource = new DataSource(this, "test", mSubInfo, SubsonicService.class);
+        mDataSource = new DataSource(this, "test", mSubInfo, SubsonicService.class,
+                SubsonicLibrarySyncService.class);
 
         setContentView(R.layout.main);
 
@@ -106,6 +107,7 @@ public class MainActivity extends Activity
 
     private void unbindDownloadService() {
         if (mDownloadService != null) {
+            mDownloadService.unregisterListener(mFolderProgressListener);
             unbindService(mDownloadServiceConnection);
         }
     }
@@ -119,6 +121,12 @@ public class MainActivity extends Activity
         @Override
         public void onServiceConnected(final ComponentName className, final IBinder service) {
             mDownloadService = ((DownloadService.ServiceBinder) service).getService();
+
+            // Downloads restored from a previous run need the server's credentials before they can carry on
+            mDownloadService.addDataSource(mDataSource);
+
+            // Folders queued before this Activity was (re)created are still being listed by the service
+            mDownloadService.registerListener(mFolderProgressListener);
         }
 
         @Override
@@ -130,44 +138,32 @@ public class MainActivity extends Activity
 
     @Override
     public void download(final FilesystemEntry entry, final boolean transcoded) {
+        // A file the user picked out goes ahead of the files of folders they've queued
+        download(entry, transcoded, entry.isFolder ?
+                DownloadService.Download.PRIORITY_NORMAL : DownloadService.Download.PRIORITY_HIGH);
+    }
+
+    // Shows how far the listing of queued folders has got
+    private final DownloadService.Listener mFolderProgressListener = new DownloadService.Adapter() {
+        @Override
+        public void onFolderProgress(final int fileCount, final long byteCount) {
+            getActionBar().setSubtitle(getString(R.string.folder_enumeration_progress, fileCount,
+                    DownloadService.Download.formatSize(byteCount)));
+        }
+
+        @Override
+        public void onFoldersQueued() {
+            getActionBar().setSubtitle(null);
+        }
+    };
+
+    private void download(final FilesystemEntry entry, final boolean transcoded, final int priority) {
         if (entry.isFolder) {
-            final Folder f = (Folder) entry;
-
-            // Load the contents of the folder
-            final Loader<Cursor> contentsLoader = mDataSource.getFolderContentsCursorLoader(f, false);
-
-            // Callback for when the loading is finished
-            contentsLoader.registerListener(0, new Loader.OnLoadCompleteListener<Cursor>() {
-                @Override
-                public void onLoadComplete(final Loader<Cursor> cursorLoader, final Cursor cursor) {
-                    // Queue a download for each item in the folder
-                    cursor.moveToFirst();
-
-                    for (int i = 0, len = cursor.getCount(); i < len; i++) {
-                        download(FilesystemEntry.getInstance(cursor), transcoded);
-                        cursor.moveToNext();
-                    }
-                }
-            });
-
-            contentsLoader.startLoading();
+            // Queue the files as they're found, rather than waiting for the whole tree to be listed
+            mDownloadService.queueFolder(mDataSource, (Folder) entry, transcoded, priority);
         } else {
-            final MediaFile mediaFile = (MediaFile) entry;
-
             try {
-                // Construct the path for the file based on its properties
-                // TODO: this could stand to be a little less hideous
-                final String savePath = Environment.getExternalStorageDirectory().toString() + "/SubsonicClient/" +
-                        mediaFile.path.substring(0, mediaFile.path.lastIndexOf('.') + 1) +
-                        (transcoded && mediaFile.transcodedSuffix != null ?
-                                mediaFile.transcodedSuffix : mediaFile.suffix);
-
-                final DataSource.AccessInformation accessInfo = mDataSource.getAccessInformation();
-                final String url = accessInfo.getDownloadUrl(mediaFile, transcoded);
-                final String username = accessInfo.getUsername();
-                final String password = accessInfo.getPassword();
-
-                mDownloadService.queue(mediaFile.name, url, savePath, username, password);
+                mDownloadService.queue(mDataSource, (MediaFile) entry, transcoded, priority);
             } catch (final Exception e) {
                 // TODO: better exception handling
                 Log.e(getClass().getSimpleName(), "Error", e);
@@ -184,6 +180,8 @@ public class MainActivity extends Activity
     @Override
     protected void onDestroy() {
         super.onDestroy();
+
+        // Folders that are still being listed carry on in the service
         unbindDownloadService();
     }
 
@@ -224,6 +222,10 @@ public class MainActivity extends Activity
                 startActivity(new Intent(getBaseContext(), PreferencesActivity.class));
                 return true;
 
+            case R.id.option_sync_library:
+                mDataSource.startLibrarySync(false);
+                return true;
+
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+// The body of a media file response, which is only part of the file if a range was requested and honoured
+final class MediaStream implements Closeable {
+    private final InputStream mStream;
+    private final boolean mPartial;
+    private final long mOffset, mTotalLength;
+    private final String mValidator;
+
+    /**
+     * @param stream The response body
+     * @param partial Whether the body is the range that was requested, rather than the whole file
+     * @param offset The position in the file of the first byte of the body; 0 unless the response is partial
+     * @param totalLength The length of the whole file, or -1 if unknown
+     * @param validator The file's strong ETag or else its Last-Modified date, for resuming it later; null if neither
+     */
+    MediaStream(final InputStream stream, final boolean partial, final long offset, final long totalLength,
+            final String validator) {
+        mStream = stream;
+        mPartial = partial;
+        mOffset = offset;
+        mTotalLength = totalLength;
+        mValidator = validator;
+    }
+
+    InputStream getStream() {
+        return mStream;
+    }
+
+    long getOffset() {
+        return mOffset;
+    }
+
+    long getTotalLength() {
+        return mTotalLength;
+    }
+
+    String getValidator() {
+        return mValidator;
+    }
+
+    boolean isPartial() {
+        return mPartial;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2012, Joseph Casamento
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.casamento.subsonicclient;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// The body of an HTTP response, which can be consumed once, either as raw bytes, as characters or as a whole String
+class ResponseBody implements Closeable {
+    private static final String logTag = "ResponseBody";
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8 * 1024, POOL_SIZE = 8;
+
+    // Never pre-size the decoded String to more than this many chars, whatever the server claims the length is
+    private static final int MAX_PRESIZE = 8 * 1024 * 1024;
+
+    // Buffers are recycled between reads, so that decoding a response doesn't allocate anything but the result
+    private static final BlockingQueue<byte[]> mByteBuffers = new ArrayBlockingQueue<byte[]>(POOL_SIZE);
+    private static final BlockingQueue<char[]> mCharBuffers = new ArrayBlockingQueue<char[]>(POOL_SIZE);
+
+    static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+    // Totals over every compressed response: bytes received over the network, and bytes they decompressed to
+    private static final AtomicLong mCompressedBytes = new AtomicLong(), mDecompressedBytes = new AtomicLong();
+
+    private final InputStream mStream;
+    private final long mContentLength;
+    private final Charset mCharset;
+
+    /**
+     * @param stream The stream the body is read from
+     * @param contentLength The length of the body in bytes, or a negative number if it isn't known
+     * @param charset The character set the body is encoded with, or null to assume UTF-8
+     */
+    ResponseBody(final InputStream stream, final long contentLength, final Charset charset) {
+        mStream = stream;
+        mContentLength = contentLength;
+        mCharset = charset == null ? UTF_8 : charset;
+    }
+
+    /**
+     * Wraps a response body that was transferred with a content-encoding, decompressing it as it's read.
+     * @param stream The body as it was received
+     * @param contentEncoding The value of the response's Content-Encoding header
+     * @param charset The character set the decompressed body is encoded with, or null to assume UTF-8
+     * @return The decompressed body, whose length isn't known in advance
+     */
+    static ResponseBody decode(final InputStream stream, final String contentEncoding, final Charset charset)
+            throws IOException {
+        final String encoding = contentEncoding.trim().toLowerCase(Locale.US);
+
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            final CountingInputStream compressed = new CountingInputStream(stream);
+            return new CompressedResponseBody(compressed, new GZIPInputStream(compressed, BUFFER_SIZE), charset);
+        } else if (encoding.equals("deflate")) {
+            // "deflate" is supposed to mean zlib-wrapped data, but some servers send a raw deflate stream instead
+            final CountingInputStream compressed = new CountingInputStream(new BufferedInputStream(stream));
+            compressed.mark(2);
+            final int b0 = compressed.read(), b1 = compressed.read();
+            compressed.reset();
+            final boolean zlibWrapped = (b0 & 0x0f) == 8 && b1 != -1 && ((b0 << 8) | b1) % 31 == 0;
+
+            return new CompressedResponseBody(compressed,
+                    new InflaterInputStream(compressed, new Inflater(!zlibWrapped), BUFFER_SIZE), charset);
+        } else if (encoding.equals("identity") || encoding.length() == 0) {
+            return new ResponseBody(stream, -1, charset);
+        } else {
+            stream.close();
+            throw new IOException("Unsupported content encoding: " + contentEncoding);
+        }
+    }
+
+    // The number of bytes transfer compression has saved since the process started
+    static long getBytesSaved() {
+        return mDecompressedBytes.get() - mCompressedBytes.get();
+    }
+
+    static long getCompressedBytesReceived() {
+        return mCompressedBytes.get();
+    }
+
+    Charset getCharset() {
+        return mCharset;
+    }
+
+    long getContentLength() {
+        return mContentLength;
+    }
+
+    InputStream byteStream() {
+        return mStream;
+    }
+
+    // Decodes the body incrementally; multi-byte characters that straddle two reads are decoded correctly
+    Reader charStream() {
+        return new InputStreamReader(mStream, mCharset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    // Reads and decodes the whole body, in time linear in its length
+    String string() throws IOException {
+        final byte[] bytes = acquireBytes();
+        final char[] chars = acquireChars();
+
+        try {
+            final CharsetDecoder decoder = mCharset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            // A byte never decodes to more than one char in the character sets servers send, so the content length is
+            // an upper bound on the size of the result
+            final StringBuilder sb = new StringBuilder(mContentLength > 0 ?
+                    (int) Math.min(mContentLength, MAX_PRESIZE) :
+                    BUFFER_SIZE);
+
+            final ByteBuffer in = ByteBuffer.wrap(bytes);
+            final CharBuffer out = CharBuffer.wrap(chars);
+
+            int read;
+            while ((read = mStream.read(bytes, in.position(), in.remaining())) != -1) {
+                in.position(in.position() + read);
+                in.flip();
+                decode(decoder, in, out, sb, false);
+
+                // Keep the bytes of any partial character at the start of the buffer for the next read
+                in.compact();
+            }
+
+            in.flip();
+            decode(decoder, in, out, sb, true);
+            while (decoder.flush(out) == CoderResult.OVERFLOW)
+                drain(out, sb);
+            drain(out, sb);
+
+            return sb.toString();
+        } finally {
+            release(mByteBuffers, bytes);
+            release(mCharBuffers, chars);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+
+    private static void decode(final CharsetDecoder decoder, final ByteBuffer in, final CharBuffer out,
+            final StringBuilder sb, final boolean endOfInput) {
+        while (decoder.decode(in, out, endOfInput) == CoderResult.OVERFLOW)
+            drain(out, sb);
+    }
+
+    private static void drain(final CharBuffer out, final StringBuilder sb) {
+        out.flip();
+        sb.append(out.array(), out.arrayOffset(), out.remaining());
+        out.clear();
+    }
+
+    private static byte[] acquireBytes() {
+        final byte[] buffer = mByteBuffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static char[] acquireChars() {
+        final char[] buffer = mCharBuffers.poll();
+        return buffer != null ? buffer : new char[BUFFER_SIZE];
+    }
+
+    // Returns a buffer to its pool; if the pool is already full, the buffer is left for the garbage collector
+    private static <T> void release(final BlockingQueue<T> pool, final T buffer) {
+        pool.offer(buffer);
+    }
+
+    // A body that's decompressed as it's read; once it's closed, records how many bytes compression saved
+    private static class CompressedResponseBody extends ResponseBody {
+        private final CountingInputStream mCompressed, mDecompressed;
+        private boolean mClosed = false;
+
+        private CompressedResponseBody(final CountingInputStream compressed, final InputStream decompressed,
+                final Charset charset) {
+            this(compressed, new CountingInputStream(decompressed), charset);
+        }
+
+        private CompressedResponseBody(final CountingInputStream compressed, final CountingInputStream decompressed,
+                final Charset charset) {
+            super(decompressed, -1, charset);
+            mCompressed = compressed;
+            mDecompressed = decompressed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+
+            if (!mClosed) {
+                mClosed = true;
+
+                final long received = mCompressed.getCount(), decompressed = mDecompressed.getCount();
+                mCompressedBytes.addAndGet(received);
+                mDecompressedBytes.addAndGet(decompressed);
+
+                Log.d(logTag, String.format("Received %d compressed bytes for %d bytes of content (%d saved)",
+                        received, decompressed, decompressed - received));
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount = 0, mMark = 0;
+
+        private CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+            final int read = super.read(buffer, offset, count);
+            if (read > 0) mCount += read;
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark(final int readLimit) {
+            super.mark(readLimit);
+            mMark = mCount;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            mCount = mMark;
+        }
+    }
+}
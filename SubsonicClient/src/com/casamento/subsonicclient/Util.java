@@ -27,21 +27,24 @@ package com.casamento.subsonicclient;
 import android.text.Html;
 import android.text.TextUtils;
 import android.util.Log;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthenticationException;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -51,6 +54,8 @@ import java.util.Map;
 
 // Methods that haven't yet found a home elsewhere, and are needed in disparate places
 public final class Util {
+    private static final String logTag = "Util";
+
     public static Calendar getDateFromISOString(final String dateStr) {
         if (TextUtils.isEmpty(dateStr))
             return null;
@@ -115,26 +120,88 @@ public final class Util {
         return urlStr;
     }
 
-    private static final int BUFFER_SIZE = 1024;
+    /**
+     * Opens a media file on a network using basic preemptive HTTP authentication. The stream must be closed once it's no
+     * longer needed, so that its connection can go back to the pool.
+     * @param offset If nonzero, only the part of the file from this byte onwards is requested
+     * @param last If not -1, only the part of the file up to and including this byte is requested
+     * @param validator The validator from an earlier response for the same file; if the file has changed since, or the
+     *                  server doesn't support ranges, the whole file is returned instead
+     */
+    static MediaStream getMediaStream(final String restUrl, final String username, final String password,
+            final long offset, final long last, final String validator) throws AuthenticationException, IOException {
+        final HttpUriRequest get = newRequest(restUrl, username, password);
+
+        if (offset > 0 || last >= 0) {
+            get.addHeader("Range", "bytes=" + offset + "-" + (last >= 0 ? Long.toString(last) : ""));
+            if (validator != null)
+                get.addHeader("If-Range", validator);
+        }
+
+        final HttpResponse response = HttpClientPool.execute(get);
+        final int status = response.getStatusLine().getStatusCode();
+
+        if (status != HttpStatus.SC_OK && status != HttpStatus.SC_PARTIAL_CONTENT) {
+            get.abort();
 
-    // Reads all bytes from an InputStream into a String
-    static String readAll(final InputStream input) throws IOException {
-        String responseData = "";
-        int bytesRead = 1;
-        final byte[] buffer = new byte[BUFFER_SIZE];
+            // The range is past the end of the file, so the file must have changed; start over
+            if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0)
+                return getMediaStream(restUrl, username, password, 0, -1, null);
 
-        while (bytesRead > 0) {
-            bytesRead = input.read(buffer);
-            if (bytesRead > 0)
-                responseData += new String(buffer, 0, bytesRead);
+            throw new IOException("HTTP status " + status + " for " + restUrl);
+        }
+
+        long start = 0, totalLength = response.getEntity().getContentLength();
+
+        if (status == HttpStatus.SC_PARTIAL_CONTENT) {
+            final long[] range = parseContentRange(response.getFirstHeader("Content-Range"));
+
+            // Only a range starting where it was asked to is any use
+            if (range == null || range[0] != offset) {
+                get.abort();
+                return getMediaStream(restUrl, username, password, 0, -1, null);
+            }
+
+            start = range[0];
+            totalLength = range[1];
+        }
+
+        // Weak ETags can't be used with If-Range
+        final Header eTag = response.getFirstHeader("ETag"), lastModified = response.getFirstHeader("Last-Modified");
+        final String newValidator = eTag != null && !eTag.getValue().startsWith("W/") ?
+                eTag.getValue() :
+                lastModified != null ? lastModified.getValue() : null;
+
+        // Media files are already compressed, so they're always transferred as-is
+        final InputStream content = new BufferedInputStream(HttpClientPool.getContent(get, response));
+        return new MediaStream(content, status == HttpStatus.SC_PARTIAL_CONTENT, start, totalLength, newValidator);
+    }
+
+    // Parses a "Content-Range: bytes <first>-<last>/<total>" header into { first, total }, where total may be -1
+    private static long[] parseContentRange(final Header header) {
+        if (header == null) return null;
+
+        final String value = header.getValue().trim();
+        final int dash = value.indexOf('-'), slash = value.indexOf('/');
+        if (!value.startsWith("bytes ") || dash < 0 || slash < dash) return null;
+
+        try {
+            final long first = Long.parseLong(value.substring("bytes ".length(), dash).trim());
+            final String total = value.substring(slash + 1).trim();
+            return new long[] { first, total.equals("*") ? -1 : Long.parseLong(total) };
+        } catch (final NumberFormatException e) {
+            return null;
         }
+    }
 
-        return responseData;
+    // Like getStream, but for REST metadata calls: the response may be transferred compressed (it's decompressed
+    // transparently), and its length and character set are made available for decoding it
+    static ResponseBody getResponseBody(final String restUrl, final String username, final String password) throws AuthenticationException, IOException {
+        return execute(restUrl, username, password, true);
     }
 
-    // Returns an InputStream wrapping a file on a network using basic preemptive HTTP authentication
-    static InputStream getStream(final String restUrl, final String username, final String password) throws AuthenticationException, IOException {
-        final HttpClient client = new DefaultHttpClient();
+    private static HttpUriRequest newRequest(final String restUrl, final String username, final String password)
+            throws AuthenticationException {
         final HttpUriRequest get = new HttpGet(restUrl);
 
         if (username != null && password != null) {
@@ -142,9 +209,60 @@ public final class Util {
             get.addHeader(new BasicScheme().authenticate(creds, get));
         }
 
-        // Make the request
-        final HttpResponse response = client.execute(get);
+        return get;
+    }
+
+    private static ResponseBody execute(final String restUrl, final String username, final String password,
+            final boolean isMetadata) throws AuthenticationException, IOException {
+        final HttpUriRequest get = newRequest(restUrl, username, password);
+
+        // Metadata responses are cached, if there's a cache; a fresh one is used as-is, and a stale one is revalidated
+        final HttpResponseCache cache = isMetadata ? HttpResponseCache.getInstalled() : null;
+        final HttpResponseCache.Entry cached = cache == null ? null : cache.get(restUrl, username);
+
+        if (cached != null) {
+            if (cached.isFresh()) {
+                // If the entry was evicted in the meantime, it's gone from the cache now, so this goes to the network
+                final ResponseBody body = cache.hit(cached);
+                return body != null ? body : execute(restUrl, username, password, isMetadata);
+            }
+
+            cached.addConditionalHeaders(get);
+        }
+
+        if (isMetadata)
+            get.addHeader("Accept-Encoding", ResponseBody.ACCEPTED_ENCODINGS);
+
+        // Make the request; metadata is what the user is waiting on while browsing, so downloads make way for it
+        final HttpResponse response = isMetadata ? HttpClientPool.executeInteractive(get) : HttpClientPool.execute(get);
+        final int status = response.getStatusLine().getStatusCode();
+
+        if (cached != null && status == HttpStatus.SC_NOT_MODIFIED) {
+            // As above; the 304 has no body, so there's nothing to release before asking again unconditionally
+            final ResponseBody body = cache.revalidated(cached, response);
+            return body != null ? body : execute(restUrl, username, password, isMetadata);
+        }
+
+        final HttpEntity entity = response.getEntity();
+
+        final String charsetName = EntityUtils.getContentCharSet(entity);
+        Charset charset = null;
+        try {
+            if (charsetName != null)
+                charset = Charset.forName(charsetName);
+        } catch (final IllegalArgumentException e) {
+            Log.w(logTag, "Unsupported response charset " + charsetName, e);
+        }
+
+        final InputStream content = HttpClientPool.getContent(get, response);
+        final Header encoding = entity.getContentEncoding();
+
+        final ResponseBody body = isMetadata && encoding != null ?
+                ResponseBody.decode(content, encoding.getValue(), charset) :
+                new ResponseBody(content, entity.getContentLength(), charset);
 
-        return new BufferedInputStream(response.getEntity().getContent());
+        return cache != null && status == HttpStatus.SC_OK ?
+                cache.put(restUrl, username, response, body) :
+                body;
     }
 }
@@ -26,6 +26,8 @@ package com.casamento.subsonicclient;
 
 import android.os.Parcel;
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import org.apache.http.auth.AuthenticationException;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -79,6 +81,12 @@ public class SubsonicService extends DataRetrievalService {
             return mPassword;
         }
 
+        @Override
+        long retrieveFolderContents(final Folder f, final long ifModifiedSince, final EntryHandler handler)
+                throws IOException, AuthenticationException, DataSourceException {
+            return getFolderContents(this, f, ifModifiedSince, handler);
+        }
+
         SubsonicAccessInformation(final String url, final String username, final String password) {
             mUrl = url;
             mUsername = username;
@@ -121,11 +129,27 @@ public class SubsonicService extends DataRetrievalService {
 
     @Override
     Folder[] retrieveTopLevelFolders(final DataSource.AccessInformation accessInfo) throws AuthenticationException, DataSourceException, JSONException, IOException {
-        final SubsonicAccessInformation subInfo = (SubsonicAccessInformation) accessInfo;
+        return getTopLevelFolders((SubsonicAccessInformation) accessInfo);
+    }
+
+    @Override
+    long retrieveFolderContents(final DataSource.AccessInformation accessInfo, final Folder folder,
+            final long ifModifiedSince, final EntryHandler handler)
+            throws IOException, AuthenticationException, DataSourceException {
+        return getFolderContents((SubsonicAccessInformation) accessInfo, folder, ifModifiedSince, handler);
+    }
 
+    // The retrieval methods are static so that other services (e.g. SubsonicLibrarySyncService) can share them
+    static Folder[] getTopLevelFolders(final SubsonicAccessInformation subInfo) throws AuthenticationException, DataSourceException, JSONException, IOException {
         // Retrieve the data from the server
         final String callUrl = Util.buildRestCall(subInfo.mUrl, METHOD_LIST_TOP_LEVEL_FOLDERS, mRequiredParams);
-        final String responseStr = Util.readAll(Util.getStream(callUrl, subInfo.mUsername, subInfo.mPassword));
+        final ResponseBody body = Util.getResponseBody(callUrl, subInfo.mUsername, subInfo.mPassword);
+        final String responseStr;
+        try {
+            responseStr = body.string();
+        } finally {
+            body.close();
+        }
         final JSONObject response = parseSubsonicResponse(responseStr);
 
         // The "musicFolder" element can be either an array or a single object
@@ -145,10 +169,10 @@ public class SubsonicService extends DataRetrievalService {
         }
     }
 
-    @Override
-    FilesystemEntry[] retrieveFolderContents(final DataSource.AccessInformation accessInfo, final Folder folder) throws IOException, AuthenticationException, DataSourceException, JSONException {
-        final SubsonicAccessInformation subInfo = (SubsonicAccessInformation) accessInfo;
-
+    // Only getIndexes (i.e. top-level folders) reports modification times, so other folders are always listed in full
+    static long getFolderContents(final SubsonicAccessInformation subInfo, final Folder folder,
+            final long ifModifiedSince, final EntryHandler handler)
+            throws IOException, AuthenticationException, DataSourceException {
         final Map<String, String> params = new HashMap<String, String>(mRequiredParams);
         params.put("id", Integer.toString(folder.id));
 
@@ -158,54 +182,52 @@ public class SubsonicService extends DataRetrievalService {
             // Top-level folders have negative IDs
             params.put("musicFolderId", Integer.toString(-folder.id));
             method = METHOD_LIST_TOP_LEVEL_FOLDER_CONTENTS;
+
+            if (ifModifiedSince > 0)
+                params.put("ifModifiedSince", Long.toString(ifModifiedSince));
         } else {
             params.put("id", Integer.toString(folder.id));
             method = METHOD_LIST_FOLDER_CONTENTS;
         }
 
-        // Get the response from the server
+        // Get the response from the server and unmarshal the entries straight out of the stream as they arrive
         final String callUrl = Util.buildRestCall(subInfo.mUrl, method, params);
-        final String responseStr = Util.readAll(Util.getStream(callUrl, subInfo.mUsername, subInfo.mPassword));
-        final JSONObject response = parseSubsonicResponse(responseStr);
-
-        final List<FilesystemEntry> entryList = new ArrayList<FilesystemEntry>();
-
-        // Unmarshal the objects from the server response
-
-        JSONObject indexesObj = response.optJSONObject("indexes");
-        if (indexesObj == null) indexesObj = response.getJSONObject("directory");
-
-        // The "child" element can be either an array or an object; optJSONArray("child") returns null if it's an object
-        final JSONArray children = indexesObj.optJSONArray("child");
-        if (children == null) {
-            final JSONObject child = indexesObj.optJSONObject("child");
-            if (child != null) {
-                entryList.add(getFilesystemEntry(child, folder.id));
-            }
-        } else {
-            for (int i = 0, len = children.length(); i < len; i++) {
-                entryList.add(getFilesystemEntry(children.getJSONObject(i), folder.id));
+        final ResponseBody body = Util.getResponseBody(callUrl, subInfo.mUsername, subInfo.mPassword);
+        final JsonReader reader = new JsonReader(body.charStream());
+        final int[] entryCount = { 0 };
+        long lastModified = 0;
+
+        try {
+            beginSubsonicResponse(reader);
+
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+
+                if (name.equals("indexes") || name.equals("directory"))
+                    lastModified = unmarshalFolderContents(reader, folder.id, new EntryHandler() {
+                        @Override
+                        public void onEntry(final FilesystemEntry entry) {
+                            entryCount[0]++;
+                            handler.onEntry(entry);
+                        }
+                    });
+                else if (name.equals("error"))
+                    throw unmarshalError(reader);
+                else
+                    reader.skipValue();
             }
-        }
 
-        final JSONArray indexArr = indexesObj.optJSONArray("index");
-        if (indexArr != null) {
-            for (int i = 0, indexCount = indexArr.length(); i < indexCount; i++) {
-                final JSONObject index = indexArr.getJSONObject(i);
-
-                // Artist tag can be either an array or an object (if there's only one)
-                final JSONArray folders = index.optJSONArray("artist");
-                if (folders != null) {
-                    for (int j = 0, folderCount = folders.length(); j < folderCount; j++) {
-                        entryList.add(getFilesystemEntry(folders.getJSONObject(j), folder.id, true));
-                    }
-                } else {
-                    entryList.add(getFilesystemEntry(index.getJSONObject("artist"), folder.id, true));
-                }
-            }
+            reader.endObject();
+            reader.endObject();
+        } finally {
+            reader.close();
         }
 
-        return entryList.toArray(new FilesystemEntry[entryList.size()]);
+        // When nothing has changed, getIndexes sends an empty index along with the (unchanged) modification time
+        if (ifModifiedSince > 0 && entryCount[0] == 0 && lastModified > 0 && lastModified <= ifModifiedSince)
+            return NOT_MODIFIED;
+
+        return lastModified;
     }
 
     private static JSONObject parseSubsonicResponse(final CharSequence responseStr) throws JSONException, DataSourceException {
@@ -220,62 +242,174 @@ public class SubsonicService extends DataRetrievalService {
         return jResponse;
     }
 
-    private static FilesystemEntry getFilesystemEntry(final JSONObject json, final int parentId) throws JSONException {
-        return getFilesystemEntry(json, parentId, json.optBoolean("isDir"));
-    }
+    // Positions the reader inside the "subsonic-response" object, at the name of its first member
+    private static void beginSubsonicResponse(final JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (!reader.nextName().equals("subsonic-response"))
+            reader.skipValue();
 
-    private static FilesystemEntry getFilesystemEntry(final JSONObject json, final int parentId,
-            final boolean isFolder) throws JSONException {
-        return isFolder ?
-                getFolder(json, parentId) :
-                getMediaFile(json, parentId);
+        reader.beginObject();
     }
 
-    // Non-top-level folder factory method
-    private static Folder getFolder(final JSONObject json, Integer parentId) throws JSONException {
-        final Integer id = json.getInt("id");
-
-        Integer coverArtId = json.optInt("coverArt", Integer.MIN_VALUE);
-        if (coverArtId == Integer.MIN_VALUE) coverArtId = null;
+    private static DataSourceException unmarshalError(final JsonReader reader) throws IOException {
+        int code = 0;
+        String message = null;
 
-        String name = json.optString("name");
-        if (TextUtils.isEmpty(name)) name = json.optString("title");
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
 
-        final String artist = Util.fixHtmlEntities(json.optString("artist"));
-        final String album = Util.fixHtmlEntities(json.optString("album"));
-
-        final Calendar created = Util.getDateFromISOString(json.optString("created"));
+            if (name.equals("code"))
+                code = reader.nextInt();
+            else if (name.equals("message"))
+                message = reader.nextString();
+            else
+                reader.skipValue();
+        }
+        reader.endObject();
 
-        return new Folder(id, parentId, name, coverArtId, artist, album, created, false);
+        return new DataSourceException(code, message);
     }
 
-    private static MediaFile getMediaFile(final JSONObject json, final Integer parentId) throws JSONException {
-        final Integer id = json.getInt("id");
-
-        Integer coverArtId = json.optInt("coverArt", Integer.MIN_VALUE);
-        if (coverArtId == Integer.MIN_VALUE) coverArtId = null;
+    // Unmarshals the "indexes" object of getIndexes or the "directory" object of getMusicDirectory, returning the
+    // folder's last-modified time if the response includes one, or 0 if not
+    private static long unmarshalFolderContents(final JsonReader reader, final int parentId,
+            final EntryHandler handler) throws IOException {
+        long lastModified = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+
+            // Subsonic represents a list with only one element as the element itself, rather than as an array
+            if (name.equals("child")) {
+                if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        handler.onEntry(unmarshalFilesystemEntry(reader, parentId, false));
+                    reader.endArray();
+                } else {
+                    handler.onEntry(unmarshalFilesystemEntry(reader, parentId, false));
+                }
+            } else if (name.equals("index")) {
+                if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        unmarshalIndex(reader, parentId, handler);
+                    reader.endArray();
+                } else {
+                    unmarshalIndex(reader, parentId, handler);
+                }
+            } else if (name.equals("lastModified")) {
+                lastModified = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
 
-        String name = json.optString("name");
-        if (TextUtils.isEmpty(name)) name = json.optString("title");
+        return lastModified;
+    }
 
-        final String path = json.getString("path");
-        final String suffix = Util.fixHtmlEntities(json.getString("suffix"));
-        final String transcodedSuffix = Util.fixHtmlEntities(json.optString("suffix"));
-        final String artist = Util.fixHtmlEntities(json.optString("artist"));
-        final String album = Util.fixHtmlEntities(json.optString("album"));
+    // An index groups the artists whose names start with the same letter; every artist is a folder
+    private static void unmarshalIndex(final JsonReader reader, final int parentId, final EntryHandler handler)
+            throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("artist")) {
+                if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        handler.onEntry(unmarshalFilesystemEntry(reader, parentId, true));
+                    reader.endArray();
+                } else {
+                    handler.onEntry(unmarshalFilesystemEntry(reader, parentId, true));
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
 
-        Long size = json.optLong("size", Integer.MIN_VALUE);
-        if (size == Integer.MIN_VALUE) size = null;
+    /**
+     * Unmarshals a single folder or media file from the object at the reader's current position.
+     * @param reader The reader, positioned at the beginning of the object
+     * @param parentId The ID of the folder that contains the entry
+     * @param forceFolder If true, the entry is a folder regardless of its "isDir" attribute (artists don't have one)
+     * @return The unmarshalled entry
+     */
+    private static FilesystemEntry unmarshalFilesystemEntry(final JsonReader reader, final int parentId,
+            final boolean forceFolder) throws IOException {
+        Integer id = null, coverArtId = null, duration = null, trackNumber = null;
+        Long size = null;
+        boolean isFolder = forceFolder;
+        String name = null, title = null, path = null, suffix = null, transcodedSuffix = null, artist = null,
+                album = null, created = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String key = reader.nextName();
+
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (key.equals("id")) {
+                id = reader.nextInt();
+            } else if (key.equals("isDir")) {
+                isFolder |= reader.peek() == JsonToken.BOOLEAN ?
+                        reader.nextBoolean() :
+                        Boolean.parseBoolean(reader.nextString());
+            } else if (key.equals("name")) {
+                name = reader.nextString();
+            } else if (key.equals("title")) {
+                title = reader.nextString();
+            } else if (key.equals("coverArt")) {
+                coverArtId = nextIntOrNull(reader);
+            } else if (key.equals("artist")) {
+                artist = reader.nextString();
+            } else if (key.equals("album")) {
+                album = reader.nextString();
+            } else if (key.equals("created")) {
+                created = reader.nextString();
+            } else if (key.equals("path")) {
+                path = reader.nextString();
+            } else if (key.equals("suffix")) {
+                suffix = reader.nextString();
+            } else if (key.equals("transcodedSuffix")) {
+                transcodedSuffix = reader.nextString();
+            } else if (key.equals("size")) {
+                size = reader.nextLong();
+            } else if (key.equals("duration")) {
+                duration = nextIntOrNull(reader);
+            } else if (key.equals("track")) {
+                trackNumber = nextIntOrNull(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
 
-        Integer duration = json.optInt("duration", Integer.MIN_VALUE);
-        if (duration == Integer.MIN_VALUE) duration = null;
+        if (id == null)
+            throw new IOException("Filesystem entry without an id in folder " + parentId);
 
-        Integer trackNumber = json.optInt("track", Integer.MIN_VALUE);
-        if (trackNumber == Integer.MIN_VALUE) trackNumber = null;
+        if (TextUtils.isEmpty(name)) name = title;
+        if (name == null) name = "";
 
-        final Calendar created = Util.getDateFromISOString(json.optString("created"));
+        return isFolder ?
+                new Folder(id, parentId, name, coverArtId, Util.fixHtmlEntities(artist), Util.fixHtmlEntities(album),
+                        Util.getDateFromISOString(created), false) :
+                new MediaFile(id, parentId, name, coverArtId, path, Util.fixHtmlEntities(suffix),
+                        Util.fixHtmlEntities(transcodedSuffix), Util.fixHtmlEntities(artist),
+                        Util.fixHtmlEntities(album), size, duration, trackNumber, Util.getDateFromISOString(created));
+    }
 
-        return new MediaFile(id, parentId, name, coverArtId, path, suffix, transcodedSuffix, artist, album, size,
-                duration, trackNumber, created);
+    // Reads an integer attribute that some servers send as a non-numeric string, treating such values as absent
+    private static Integer nextIntOrNull(final JsonReader reader) throws IOException {
+        try {
+            return reader.nextInt();
+        } catch (final NumberFormatException e) {
+            reader.skipValue();
+            return null;
+        }
     }
-}
\ No newline at end of file
+}